@@ -0,0 +1,98 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import com.wechat.dumpdb.common.TextUtil;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Disk-backed cache of transcoded voice notes.
+ * Entries are keyed by the md5 and size of the source SILK/AMR file, so a voice note
+ * is transcoded once and reused by every later export. Least recently used entries are
+ * evicted once the cache grows beyond its size limit.
+ */
+public class AudioCache {
+    private static final String TAG = "AudioCache";
+    private static final int FLUSH_INTERVAL = 15;
+
+    // Keys carry the file extension; the metadata of an entry is its duration
+    private final DiskLruCache cache;
+
+    public AudioCache(File cacheDir, long maxBytes) {
+        this.cache = new DiskLruCache(cacheDir, "", maxBytes, FLUSH_INTERVAL);
+    }
+
+    /**
+     * Cache key of a voice file transcoded to {@code format}: md5 of its content plus its size.
+     * The key doubles as the name of the cached file.
+     */
+    public static String keyFor(String voiceFile, String format) {
+        if (voiceFile == null || voiceFile.isEmpty()) {
+            return null;
+        }
+        File file = new File(voiceFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return TextUtil.getFileMd5(voiceFile) + "_" + file.length() + "." + format;
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot hash voice file " + voiceFile, e);
+            return null;
+        }
+    }
+
+    public AudioResult get(String key) {
+        DiskLruCache.Entry entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long duration;
+        try {
+            duration = Long.parseLong(entry.meta);
+        } catch (NumberFormatException e) {
+            duration = 0;
+        }
+        return new AudioResult(entry.file.getAbsolutePath(), duration, getFormat(entry.file.getName()));
+    }
+
+    /**
+     * A fresh file in the cache dir for a transcoder to write the output for {@code key} to.
+     * It keeps the key's extension, which selects the encoder. Hand it to {@link #put} once
+     * the transcoder is done, so a partial output never shows up under {@code key}.
+     */
+    public File newTempFile(String key) throws IOException {
+        return cache.newTempFile(key);
+    }
+
+    /**
+     * Move {@code tmp}, the transcoded output of {@code result}, into the cache, or delete it
+     * if the transcode failed.
+     *
+     * @return the result pointing at the cached copy, or {@code result} unchanged if it cannot be cached
+     */
+    public AudioResult put(String key, File tmp, AudioResult result) {
+        if (result == null || result.mp3Url == null || result.mp3Url.isEmpty() || tmp.length() == 0) {
+            tmp.delete();
+            return result;
+        }
+        long duration = result.duration != null ? result.duration : 0L;
+        File dst = cache.commit(key, tmp, String.valueOf(duration));
+        if (dst == null) {
+            Log.w(TAG, "Failed to store " + tmp + " in audio cache");
+            return result;
+        }
+        return new AudioResult(dst.getAbsolutePath(), result.duration, result.format);
+    }
+
+    public void flush() {
+        cache.flush();
+    }
+
+    private static String getFormat(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? AudioResult.FORMAT_MP3 : name.substring(dot + 1);
+    }
+}
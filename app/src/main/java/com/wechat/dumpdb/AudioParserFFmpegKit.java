@@ -4,63 +4,131 @@ import android.content.Context;
 import android.media.MediaMetadataRetriever;
 import android.util.Log;
 
+import com.arthenica.mobileffmpeg.Config;
+import com.arthenica.mobileffmpeg.FFmpeg;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import xyz.xxin.silkdecoder.SilkDecoder;
 
-public class AudioParserFFmpegKit {
+public class AudioParserFFmpegKit implements AudioTranscoder {
     private static final String TAG = "AudioParserFFmpegKit";
+    private static final String OUTPUT_DIRNAME = "wechatdump_audio";
+    private static final int PCM_SAMPLE_RATE = 24000;
+    private static final String OPUS_BITRATE = "16k";
+    private static final ExecutorService PCM_WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "silk-pcm-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private Context context;
+    private File outputDir;
 
     public AudioParserFFmpegKit(Context context) {
         this.context = context;
     }
 
     public AudioResult doParseWechatAudioFile(String fileName) throws Exception {
+        return transcode(fileName, null);
+    }
+
+    /**
+     * Decode a SILK/AMR voice file straight into {@code outFile}, without any per-file temp directory.
+     * A {@code .ogg} destination gets Opus at speech bitrate, anything else gets MP3.
+     */
+    @Override
+    public AudioResult transcode(String fileName, File outFile) throws Exception {
         if (fileName == null || fileName.isEmpty()) {
             return new AudioResult("", 0L);
         }
-
-        // Create temporary directory
-        File tempDir = createTempDirectory();
-        try {
+        if (outFile == null) {
             String baseName = new File(fileName).getName();
             if (baseName.endsWith(".amr")) {
                 baseName = baseName.substring(0, baseName.length() - 4);
             }
-            String mp3File = new File(tempDir, baseName + ".mp3").getAbsolutePath();
+            outFile = new File(getOutputDirectory(), baseName + ".mp3");
+        }
 
-            // Read header to determine format
-            byte[] header = new byte[10];
-            try (FileInputStream fis = new FileInputStream(fileName)) {
-                fis.read(header);
-            }
+        MediaSniffer.Type type = MediaSniffer.getInstance().sniffFile(fileName);
+        boolean isSilk = type == MediaSniffer.Type.SILK;
+        if (type != MediaSniffer.Type.AMR && !isSilk) {
+            throw new UnsupportedOperationException("Audio file format cannot be recognized.");
+        }
 
-            String headerStr = new String(header);
-            boolean result = false;
-            if (headerStr.contains("AMR") || headerStr.contains("SILK")) {
-                // Use FFmpegKit for both AMR and SILK
-//                duration = convertToMp3WithFFmpegKit(fileName, mp3File);
-//                decodeAudioToMp3(fileName, tempDir.getAbsolutePath(), baseName);
-                result = SilkDecoder.decodeToMp3(fileName, mp3File);
-//                decodeAudioToMp3Alternative(fileName, tempDir.getAbsolutePath(), baseName);
-            } else {
-                throw new UnsupportedOperationException("Audio file format cannot be recognized.");
-            }
+        String outPath = outFile.getAbsolutePath();
+        boolean ogg = outPath.endsWith("." + AudioResult.FORMAT_OGG);
+        long start = System.currentTimeMillis();
+        boolean ok = ogg ? encodeOpus(fileName, outPath, isSilk) : SilkDecoder.decodeToMp3(fileName, outPath);
+        if (ok) {
+            long elapsed = System.currentTimeMillis() - start;
+            Log.d(TAG, String.format("Encoded %s to %s in %d ms, %d bytes", fileName,
+                    ogg ? "opus" : "mp3", elapsed, outFile.length()));
+
+            // Frame headers give the exact length; only probe the output if they can't be walked
+            long duration = VoiceDuration.readDurationMs(fileName);
+            return new AudioResult(outPath, duration >= 0 ? duration : getAudioDuration(outPath),
+                    ogg ? AudioResult.FORMAT_OGG : AudioResult.FORMAT_MP3);
+        }
+        cleanupTempFiles(outPath);
+        return new AudioResult("", 0L);
+    }
 
-            // Read MP3 file and encode to base64
-//            byte[] mp3Data = Files.readAllBytes(Paths.get(mp3File));
-//            String mp3String = Base64.encodeToString(mp3Data, Base64.NO_WRAP);
-            if (result) {
-                return new AudioResult(mp3File, getAudioDuration(mp3File));
+    /**
+     * Encode to Opus in Ogg. FFmpeg cannot read SILK, so it is decoded to PCM on a writer
+     * thread and streamed to FFmpeg through a named pipe; AMR is fed to FFmpeg directly.
+     */
+    private boolean encodeOpus(String fileName, String outPath, boolean isSilk) {
+        if (!isSilk) {
+            return encodeOpus(new String[]{"-i", fileName}, outPath);
+        }
+        String pipe = Config.registerNewFFmpegPipe(context);
+        Future<Boolean> decoded = PCM_WRITERS.submit(() -> {
+            boolean ok = SilkDecoder.decodeToPcm(fileName, pipe, PCM_SAMPLE_RATE);
+            if (!ok) {
+                // The decoder may fail before opening the pipe; FFmpeg would wait for a writer forever
+                releasePipe(pipe);
             }
-            return new AudioResult("", 0L);
+            return ok;
+        });
+        try {
+            boolean encoded = encodeOpus(new String[]{"-f", "s16le", "-ar", String.valueOf(PCM_SAMPLE_RATE),
+                    "-ac", "1", "-i", pipe}, outPath);
+            if (!encoded) {
+                // Likewise the decoder, if FFmpeg gave up before opening the pipe
+                releasePipe(pipe);
+            }
+            return decoded.get() && encoded;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding " + fileName + " to PCM", e);
+            return false;
         } finally {
-            // Clean up temporary directory
-//            deleteDirectory(tempDir);
+            Config.closeFFmpegPipe(pipe);
+        }
+    }
+
+    private static boolean encodeOpus(String[] input, String outPath) {
+        String[] output = {"-c:a", "libopus", "-b:a", OPUS_BITRATE, "-application", "voip", "-y", outPath};
+        String[] cmd = new String[input.length + output.length];
+        System.arraycopy(input, 0, cmd, 0, input.length);
+        System.arraycopy(output, 0, cmd, input.length, output.length);
+        return FFmpeg.execute(cmd) == Config.RETURN_CODE_SUCCESS;
+    }
+
+    /**
+     * Open and close {@code pipe} read-write. That never blocks, but lets a peer that is still
+     * waiting in open() proceed: a reader then sees end of file, a writer a broken pipe.
+     */
+    private static void releasePipe(String pipe) {
+        try {
+            new RandomAccessFile(pipe, "rw").close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot release pipe " + pipe, e);
         }
     }
 
@@ -97,29 +165,14 @@ public class AudioParserFFmpegKit {
         return 0L;
     }
 
-    private File createTempDirectory() throws IOException {
-        File tempDir = new File(context.getExternalCacheDir(), "wechatdump_audio_" + System.currentTimeMillis());
-        if (!tempDir.mkdirs()) {
-            throw new IOException("Failed to create temporary directory: " + tempDir);
-        }
-        return tempDir;
-    }
-
-    private void deleteDirectory(File directory) {
-        if (directory == null || !directory.exists()) {
-            return;
-        }
-
-        File[] files = directory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) {
-                    deleteDirectory(file);
-                } else {
-                    file.delete();
-                }
+    private synchronized File getOutputDirectory() throws IOException {
+        if (outputDir == null) {
+            File dir = new File(context.getExternalCacheDir(), OUTPUT_DIRNAME);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create output directory: " + dir);
             }
+            outputDir = dir;
         }
-        directory.delete();
+        return outputDir;
     }
 }
\ No newline at end of file
@@ -1,11 +1,28 @@
 package com.wechat.dumpdb;
 
 public class AudioResult {
+    public static final String FORMAT_MP3 = "mp3";
+    public static final String FORMAT_OGG = "ogg";
+
+    // Path of the transcoded file, which is Ogg/Opus rather than MP3 when format says so
     public final String mp3Url;
     public final Long duration;
+    public final String format;
 
     public AudioResult(String mp3Url, Long duration) {
+        this(mp3Url, duration, FORMAT_MP3);
+    }
+
+    public AudioResult(String mp3Url, Long duration, String format) {
         this.mp3Url = mp3Url;
         this.duration = duration;
+        this.format = format;
+    }
+
+    /**
+     * MIME type of the transcoded file, for the {@code type} of an HTML audio source.
+     */
+    public String getMimeType() {
+        return FORMAT_OGG.equals(format) ? "audio/ogg; codecs=opus" : "audio/mpeg";
     }
 }
@@ -0,0 +1,65 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an in-process {@link AudioTranscoder} on a fixed set of reusable worker threads,
+ * one per core by default.
+ */
+public class AudioTranscodePool {
+    private static final String TAG = "AudioTranscodePool";
+
+    private final AudioTranscoder transcoder;
+    private final ExecutorService executor;
+
+    public AudioTranscodePool(AudioTranscoder transcoder) {
+        this(transcoder, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AudioTranscodePool(AudioTranscoder transcoder, int workers) {
+        this.transcoder = transcoder;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, workers), new WorkerFactory());
+    }
+
+    public CompletableFuture<AudioResult> submit(String inputFile, File outFile) {
+        return CompletableFuture.supplyAsync(() -> transcode(inputFile, outFile), executor);
+    }
+
+    /**
+     * Transcode on the calling thread. Never throws; failures yield an empty result.
+     */
+    public AudioResult transcode(String inputFile, File outFile) {
+        if (inputFile == null || inputFile.isEmpty()) {
+            return new AudioResult("", 0L);
+        }
+        try {
+            AudioResult result = transcoder.transcode(inputFile, outFile);
+            return result != null ? result : new AudioResult("", 0L);
+        } catch (Exception e) {
+            Log.e(TAG, "Error transcoding audio file: " + inputFile, e);
+            return new AudioResult("", 0L);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "audio-transcode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
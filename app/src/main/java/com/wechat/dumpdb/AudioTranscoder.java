@@ -0,0 +1,16 @@
+package com.wechat.dumpdb;
+
+import java.io.File;
+
+/**
+ * Converts a WeChat SILK/AMR voice file into a playable audio file.
+ */
+public interface AudioTranscoder {
+    /**
+     * Transcode {@code inputFile} into {@code outFile}.
+     *
+     * @param outFile destination, or null to let the implementation pick one
+     * @return the written file and its duration in ms, or an empty result on failure
+     */
+    AudioResult transcode(String inputFile, File outFile) throws Exception;
+}
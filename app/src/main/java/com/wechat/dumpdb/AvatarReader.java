@@ -7,30 +7,43 @@ import android.util.Log;
 import com.wechat.dumpdb.common.TextUtil;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class AvatarReader {
     private static final String TAG = "AvatarReader";
+    private static final Pattern AVATAR_ID_PATTERN = Pattern.compile("[0-9a-f]{32}", Pattern.CASE_INSENSITIVE);
 
     private String sfsDir;
+    private SfsBlockStore sfsStore;
     private String avtDir;
     private String avtDb;
     private boolean useAvt;
+    private Connection avtDbConn;
+    private Map<String, List<SfsBlockStore.Entry>> avtIndex;
+    private long avtIndexMtime;
 
     public AvatarReader(String resDir, String avtDb) {
         this.sfsDir = resDir + File.separator + "sfs";
+        this.sfsStore = new SfsBlockStore(this.sfsDir, "avatar");
 
         // New location of avatar, see #50
         this.avtDir = resDir + File.separator + "avatar";
@@ -69,11 +82,11 @@ public class AvatarReader {
 
     public Bitmap getAvatarFromAvtDb(String avtId) {
         try {
-            List<AvatarCandidate> candidates = searchAvtDb(avtId);
-            candidates.sort((a, b) -> Integer.compare(getFilenamePriority(b.path), getFilenamePriority(a.path)));
+            List<SfsBlockStore.Entry> candidates = searchAvtDb(avtId);
+            candidates.sort((a, b) -> Integer.compare(getFilenamePriority(b.fileName), getFilenamePriority(a.fileName)));
 
-            for (AvatarCandidate c : candidates) {
-                Bitmap bitmap = readImgFromBlock(c.path, c.offset, c.size);
+            for (SfsBlockStore.Entry c : candidates) {
+                Bitmap bitmap = readImgFromBlock(c);
                 if (bitmap != null) {
                     return bitmap;
                 }
@@ -165,6 +178,17 @@ public class AvatarReader {
         return null;
     }
 
+    /**
+     * Directory the avatar of {@code username} is stored in, or null if there is no avatar dir.
+     */
+    public File getAvatarDirFor(String username) {
+        if (avtDir == null) {
+            return null;
+        }
+        String avtId = TextUtil.md5(username.getBytes(StandardCharsets.UTF_8));
+        return new File(avtDir + File.separator + avtId.substring(0, 2) + File.separator + avtId.substring(2, 4));
+    }
+
     public void saveAvatarToAvtDir(String username, Bitmap bitmap) {
         if (avtDir == null) {
             Log.w(TAG, "Avatar directory not available for saving");
@@ -190,86 +214,123 @@ public class AvatarReader {
     }
 
     public Bitmap readImgFromBlock(String filename, long pos, int size) {
-        long fileIdx = pos >> 32;
-        String fname = sfsDir + File.separator + "avatar.block." + String.format("%05d", fileIdx);
-        long startPos = pos - fileIdx * (1L << 32) + 16 + filename.length() + 1;
-
-        try (RandomAccessFile file = new RandomAccessFile(fname, "r")) {
-            file.seek(startPos);
-            byte[] data = new byte[size];
-            file.readFully(data);
-            return BitmapFactory.decodeByteArray(data, 0, data.length);
-        } catch (IOException e) {
-            Log.w(TAG, "Cannot read avatar from " + fname + ": " + e.getMessage());
+        return readImgFromBlock(new SfsBlockStore.Entry(filename, pos, size));
+    }
+
+    private Bitmap readImgFromBlock(SfsBlockStore.Entry entry) {
+        InputStream stream = sfsStore.openStream(entry);
+        if (stream == null) {
             return null;
         }
+        return BitmapFactory.decodeStream(stream);
     }
 
     public Bitmap readBmFile(String fname) {
-        try (FileInputStream fis = new FileInputStream(fname)) {
-            // filesize is 36880=96x96x4+16
+        try {
+            // filesize is 36880=96x96x4+16, pixels are stored as non-premultiplied RGBA
             int width = 96, height = 96;
-            int[] pixels = new int[width * height];
-
-            for (int i = 0; i < height; i++) {
-                for (int j = 0; j < width; j++) {
-                    int r = fis.read();
-                    int g = fis.read();
-                    int b = fis.read();
-                    int a = fis.read(); // alpha, not used
+            byte[] data = Files.readAllBytes(Paths.get(fname));
+            if (data.length < width * height * 4) {
+                throw new IOException("Unexpected end of file");
+            }
 
-                    if (r == -1 || g == -1 || b == -1 || a == -1) {
-                        throw new IOException("Unexpected end of file");
+            // ARGB_8888 is laid out as RGBA in memory but holds premultiplied colors, and
+            // copyPixelsFromBuffer copies raw bytes, so premultiply before the copy
+            int length = width * height * 4;
+            for (int i = 0; i < length; i += 4) {
+                int alpha = data[i + 3] & 0xff;
+                if (alpha != 0xff) {
+                    for (int c = i; c < i + 3; c++) {
+                        data[c] = (byte) (((data[c] & 0xff) * alpha + 127) / 255);
                     }
-
-                    // Convert to ARGB format
-                    pixels[i * width + j] = (0xFF << 24) | (r << 16) | (g << 8) | b;
                 }
             }
-
-            return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(data, 0, length));
+            return bitmap;
         } catch (IOException e) {
             Log.e(TAG, "Error reading BM file: " + fname, e);
             return null;
         }
     }
 
-    private List<AvatarCandidate> searchAvtDb(String avtId) {
-        List<AvatarCandidate> candidates = new ArrayList<>();
+    private synchronized List<SfsBlockStore.Entry> searchAvtDb(String avtId) {
+        loadAvtIndex();
+        List<SfsBlockStore.Entry> candidates = avtIndex.get(avtId);
+        return candidates == null ? new ArrayList<>() : new ArrayList<>(candidates);
+    }
+
+    /**
+     * Load Index_avatar into memory, keyed by the avatar md5 in FileName.
+     * Reloaded only when the index db changes on disk.
+     */
+    private void loadAvtIndex() {
+        long mtime = new File(avtDb).lastModified();
+        if (avtIndex != null && mtime == avtIndexMtime) {
+            return;
+        }
 
-        try {
-            String url = "jdbc:sqlite:" + avtDb;
-            try (Connection conn = DriverManager.getConnection(url);
-                 Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery("SELECT FileName, Offset, Size FROM Index_avatar")) {
-
-                while (rs.next()) {
-                    String path = rs.getString("FileName");
-                    long offset = rs.getLong("Offset");
-                    int size = rs.getInt("Size");
-
-                    if (path.contains(avtId)) {
-                        candidates.add(new AvatarCandidate(path, offset, size));
-                    }
+        Map<String, List<SfsBlockStore.Entry>> index = new HashMap<>();
+        try (Statement stmt = getAvtDbConnection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT FileName, Offset, Size FROM Index_avatar")) {
+
+            while (rs.next()) {
+                String path = rs.getString("FileName");
+                if (path == null) {
+                    continue;
+                }
+                String avtId = avatarIdOf(path);
+                if (avtId == null) {
+                    continue;
+                }
+                List<SfsBlockStore.Entry> candidates = index.get(avtId);
+                if (candidates == null) {
+                    candidates = new ArrayList<>(2);
+                    index.put(avtId, candidates);
                 }
+                candidates.add(new SfsBlockStore.Entry(path, rs.getLong("Offset"), rs.getInt("Size")));
             }
+            Log.i(TAG, "Loaded " + index.size() + " avatars from " + avtDb);
         } catch (SQLException e) {
             Log.e(TAG, "Error searching avatar database", e);
         }
 
-        return candidates;
+        avtIndex = index;
+        avtIndexMtime = mtime;
     }
 
-    // Helper class to store avatar candidate information
-    private static class AvatarCandidate {
-        final String path;
-        final long offset;
-        final int size;
+    /**
+     * The avatar md5 in an Index_avatar file name, lowercased. Taken from the basename
+     * ({@code user_<md5>...}) and the last match there, since the directories may carry
+     * other hashes such as the account's {@code MicroMsg/<md5>/}.
+     */
+    private static String avatarIdOf(String path) {
+        String basename = path.substring(path.lastIndexOf('/') + 1);
+        Matcher matcher = AVATAR_ID_PATTERN.matcher(basename);
+        String avtId = null;
+        while (matcher.find()) {
+            avtId = matcher.group();
+        }
+        return avtId == null ? null : avtId.toLowerCase(Locale.ROOT);
+    }
 
-        AvatarCandidate(String path, long offset, int size) {
-            this.path = path;
-            this.offset = offset;
-            this.size = size;
+    private Connection getAvtDbConnection() throws SQLException {
+        if (avtDbConn == null || avtDbConn.isClosed()) {
+            avtDbConn = DriverManager.getConnection("jdbc:sqlite:" + avtDb);
+        }
+        return avtDbConn;
+    }
+
+    public synchronized void close() {
+        if (avtDbConn != null) {
+            try {
+                avtDbConn.close();
+            } catch (SQLException e) {
+                Log.w(TAG, "Error closing avatar database", e);
+            }
+            avtDbConn = null;
         }
+        avtIndex = null;
+        sfsStore.close();
     }
-}
\ No newline at end of file
+}
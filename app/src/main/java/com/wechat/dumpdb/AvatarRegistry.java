@@ -0,0 +1,120 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import com.wechat.dumpdb.common.TextUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Avatars of one export. Each username's avatar is resolved, JPEG-encoded and written
+ * to the output directory exactly once; renderers refer to it by a stable id.
+ * <p>
+ * Lookups never wait: an avatar still being resolved, which may hit the network, is handed
+ * out under the id and path it will be written to, and the file appears once it resolves.
+ * Call {@link #awaitPending} before packaging the output so every such file is in place.
+ */
+public class AvatarRegistry {
+    private static final String TAG = "AvatarRegistry";
+    private static final String ID_PREFIX = "avatar_";
+    private static final String EXTENSION = ".jpg";
+
+    private final Resource resource;
+    private final File outputDir;
+    // username -> avatar id, or "" if the user has no avatar
+    private final Map<String, CompletableFuture<String>> ids = new ConcurrentHashMap<>();
+    // avatar id -> written file, in first-seen order; guarded by itself
+    private final Map<String, String> files = new LinkedHashMap<>();
+
+    public AvatarRegistry(Resource resource, File outputDir) {
+        this.resource = resource;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Stable avatar id of {@code username}, or null if it is known to have no avatar.
+     * Returns immediately; if the avatar is still being resolved, its file may not exist yet.
+     */
+    public String getAvatarId(String username) {
+        if (username == null || username.isEmpty()) {
+            return null;
+        }
+        CompletableFuture<String> future = ids.computeIfAbsent(username, u -> resource.getAvatarJpegAsync(u)
+                .thenApply(jpeg -> register(u, jpeg))
+                .exceptionally(e -> {
+                    Log.e(TAG, "Failed to register avatar of " + u, e);
+                    return "";
+                }));
+        if (!future.isDone()) {
+            return idFor(username);
+        }
+        String id = future.join();
+        return id.isEmpty() ? null : id;
+    }
+
+    /**
+     * File of {@code avatarId}. For an avatar that is still being resolved this is the
+     * path it will be written to.
+     */
+    public String getAvatarPath(String avatarId) {
+        synchronized (files) {
+            String path = files.get(avatarId);
+            return path != null ? path : fileFor(avatarId).getAbsolutePath();
+        }
+    }
+
+    /**
+     * All avatars written so far, id -> file path.
+     */
+    public Map<String, String> getAvatars() {
+        synchronized (files) {
+            return new LinkedHashMap<>(files);
+        }
+    }
+
+    /**
+     * Wait until every avatar handed out so far has been resolved and written.
+     */
+    public void awaitPending() {
+        CompletableFuture.allOf(ids.values().toArray(new CompletableFuture[0])).join();
+    }
+
+    private static String idFor(String username) {
+        return ID_PREFIX + TextUtil.md5(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File fileFor(String avatarId) {
+        return new File(outputDir, avatarId + EXTENSION);
+    }
+
+    private String register(String username, byte[] jpeg) {
+        if (jpeg == null) {
+            return "";
+        }
+
+        String id = idFor(username);
+        File file = fileFor(id);
+        // Registrations run concurrently, so another thread may create the directory first
+        if (!outputDir.mkdirs() && !outputDir.isDirectory()) {
+            Log.e(TAG, "Failed to create avatar directory: " + outputDir);
+            return "";
+        }
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(jpeg);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write avatar of " + username + " to " + file, e);
+            return "";
+        }
+        synchronized (files) {
+            files.put(id, file.getAbsolutePath());
+        }
+        return id;
+    }
+}
@@ -0,0 +1,149 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Picks a working URL out of several candidates by racing cheap one-byte range probes.
+ * Probes start one after another with a short stagger, so a fast first candidate costs a
+ * single request, while a slow or dead one is hedged by the next. The first valid response
+ * wins and every other probe is cancelled.
+ */
+public class CdnUrlRacer {
+    private static final String TAG = "CdnUrlRacer";
+
+    private final MediaFetcher mediaFetcher;
+    private final long staggerMs;
+    private final long timeoutMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cdn-url-racer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CdnUrlRacer(MediaFetcher mediaFetcher, long staggerMs, long timeoutMs) {
+        this.mediaFetcher = mediaFetcher;
+        this.staggerMs = staggerMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return index of the first candidate that answered with content, or -1 if none did
+     */
+    public int race(List<String> urls) {
+        if (urls.isEmpty()) {
+            return -1;
+        }
+        CompletableFuture<Integer> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        List<Call> calls = new ArrayList<>();
+        // Set once the race is over; guarded by calls, like the list itself
+        boolean[] decided = {false};
+        List<ScheduledFuture<?>> pending = new ArrayList<>();
+
+        for (int i = 0; i < urls.size(); i++) {
+            int index = i;
+            Runnable probe = () -> {
+                if (winner.isDone()) {
+                    return;
+                }
+                // Probes skip the retries so they stay cancellable, but share the hosts' limits
+                Call call = mediaFetcher.getClient().newCall(newProbe(urls.get(index)));
+                synchronized (calls) {
+                    // The race may have ended since the check above; the cleanup below has then run
+                    if (decided[0]) {
+                        call.cancel();
+                        return;
+                    }
+                    calls.add(call);
+                }
+                mediaFetcher.enqueue(call, new Callback() {
+                    @Override
+                    public void onResponse(Call c, Response response) {
+                        try (Response r = response) {
+                            if (isValid(r)) {
+                                winner.complete(index);
+                                return;
+                            }
+                            Log.d(TAG, "Candidate " + urls.get(index) + " answered HTTP " + r.code());
+                        }
+                        fail();
+                    }
+
+                    @Override
+                    public void onFailure(Call c, IOException e) {
+                        if (!c.isCanceled()) {
+                            Log.d(TAG, "Candidate " + urls.get(index) + " failed: " + e.getMessage());
+                        }
+                        fail();
+                    }
+
+                    private void fail() {
+                        if (failures.incrementAndGet() == urls.size()) {
+                            winner.complete(-1);
+                        }
+                    }
+                });
+            };
+            pending.add(scheduler.schedule(probe, i * staggerMs, TimeUnit.MILLISECONDS));
+        }
+
+        try {
+            return winner.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "No candidate answered within " + timeoutMs + " ms");
+            return -1;
+        } catch (Exception e) {
+            Log.e(TAG, "Error racing candidates", e);
+            return -1;
+        } finally {
+            for (ScheduledFuture<?> future : pending) {
+                future.cancel(false);
+            }
+            synchronized (calls) {
+                decided[0] = true;
+                for (Call call : calls) {
+                    call.cancel();
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static boolean isValid(Response response) {
+        int code = response.code();
+        if (code != 200 && code != 206) {
+            return false;
+        }
+        // Some CDNs answer unknown files with an HTML error page
+        String contentType = response.header("Content-Type");
+        return contentType == null || !contentType.startsWith("text/");
+    }
+
+    private static Request newProbe(String url) {
+        return new Request.Builder()
+                .url(url)
+                .header("User-Agent", "MicroMessenger Client")
+                .header("Accept", "*/*")
+                .header("Range", "bytes=0-0")
+                .build();
+    }
+}
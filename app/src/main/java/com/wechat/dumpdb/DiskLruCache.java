@@ -0,0 +1,288 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A directory of cached files with a size limit. Each entry is one file, named after its key,
+ * plus an optional string of metadata. Least recently used entries are evicted once the
+ * total size grows beyond the limit. The index of entries, in access order, is saved to the
+ * directory every few writes and on {@link #flush}, so the cache carries over between exports.
+ * Hits alone do not cause a save; the order they leave is written with the next change.
+ */
+public class DiskLruCache {
+    private static final String TAG = "DiskLruCache";
+    private static final String INDEX_FILE = "index";
+    // Names of files still being written start with this; keys are never prefixed with it
+    private static final String TEMP_PREFIX = "tmp_";
+
+    private final File cacheDir;
+    private final String suffix;
+    private final long maxBytes;
+    private final int flushInterval;
+    // Access-ordered, eldest entry first
+    private final LinkedHashMap<String, Record> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // key -> number of readers holding it, see pin()
+    private final Map<String, Integer> pins = new HashMap<>();
+    private long totalBytes;
+    private int pendingWrites;
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    public static class Entry {
+        public final File file;
+        // Metadata stored with the entry, "" if none
+        public final String meta;
+
+        Entry(File file, String meta) {
+            this.file = file;
+            this.meta = meta;
+        }
+    }
+
+    /**
+     * @param suffix        appended to a key to get its file name
+     * @param flushInterval number of writes after which the index is saved
+     */
+    public DiskLruCache(File cacheDir, String suffix, long maxBytes, int flushInterval) {
+        this.cacheDir = cacheDir;
+        this.suffix = suffix;
+        this.maxBytes = maxBytes;
+        this.flushInterval = flushInterval;
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "Failed to create cache directory: " + cacheDir);
+        }
+        deleteTempFiles();
+        loadIndex();
+    }
+
+    /**
+     * Whether {@code key} is cached, without counting as a hit or miss.
+     */
+    public synchronized boolean contains(String key) {
+        return key != null && entries.containsKey(key);
+    }
+
+    /**
+     * @return the entry of {@code key}, or null on a miss
+     */
+    public synchronized Entry get(String key) {
+        Record record = key == null ? null : entries.get(key);
+        File file = record == null ? null : fileFor(key);
+        if (record == null || !file.isFile()) {
+            if (record != null) {
+                remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Entry(file, record.meta);
+    }
+
+    /**
+     * Location of the file for {@code key}. A writer may fill it directly and then hand it
+     * to {@link #commit}, which adopts it in place.
+     */
+    public File fileFor(String key) {
+        return new File(cacheDir, key + suffix);
+    }
+
+    /**
+     * A fresh file inside the cache dir to write the entry for {@code key} to before
+     * handing it to {@link #commit}. Its name ends with the entry's file name, so writers
+     * that pick a format by extension see the right one. Temporaries left behind by a
+     * crashed writer are deleted the next time the cache is opened.
+     */
+    public File newTempFile(String key) throws IOException {
+        return File.createTempFile(TEMP_PREFIX, "_" + key + suffix, cacheDir);
+    }
+
+    /**
+     * Move the fully written {@code src} into the cache as the entry for {@code key}.
+     * {@code src} is left alone if it cannot be stored, including when it alone is larger
+     * than the cache.
+     *
+     * @return the cached file, or null if it could not be stored
+     */
+    public synchronized File commit(String key, File src, String meta) {
+        if (src.length() > maxBytes) {
+            Log.w(TAG, "Not caching " + key + ", " + src.length() + " bytes exceed the limit of " + maxBytes);
+            return null;
+        }
+        File dst = fileFor(key);
+        if (!src.equals(dst) && !src.renameTo(dst)) {
+            try {
+                copyFile(src, dst);
+                src.delete();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store " + src + " in " + cacheDir, e);
+                dst.delete();
+                return null;
+            }
+        }
+
+        long bytes = dst.length();
+        Record old = entries.put(key, new Record(bytes, meta == null ? "" : meta));
+        if (old != null) {
+            totalBytes -= old.bytes;
+        }
+        totalBytes += bytes;
+        evict();
+
+        dirty = true;
+        if (++pendingWrites >= flushInterval) {
+            flush();
+        }
+        return dst;
+    }
+
+    /**
+     * Keep {@code key} from being evicted until the matching {@link #unpin}, so a reader can
+     * use its file outside the lock. The key need not be cached yet; an entry committed
+     * while it is pinned is protected too.
+     */
+    public synchronized void pin(String key) {
+        pins.merge(key, 1, Integer::sum);
+    }
+
+    public synchronized void unpin(String key) {
+        pins.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    public synchronized void remove(String key) {
+        Record record = entries.remove(key);
+        if (record != null) {
+            totalBytes -= record.bytes;
+            dirty = true;
+        }
+        fileFor(key).delete();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        File index = new File(cacheDir, INDEX_FILE);
+        File tmp = new File(cacheDir, INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Record> e : entries.entrySet()) {
+                Record record = e.getValue();
+                writer.write(e.getKey() + "\t" + e.getKey() + suffix + "\t" + record.bytes + "\t" + record.meta);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving cache index " + index, e);
+            return;
+        }
+        if (!tmp.renameTo(index)) {
+            Log.e(TAG, "Error replacing cache index " + index);
+            return;
+        }
+        pendingWrites = 0;
+        dirty = false;
+        Log.i(TAG, cacheDir.getName() + ": " + entries.size() + " entries, " + totalBytes + " bytes, "
+                + hits + " hits, " + misses + " misses");
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Record>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Record> entry = it.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+            fileFor(entry.getKey()).delete();
+            totalBytes -= entry.getValue().bytes;
+            it.remove();
+        }
+    }
+
+    private void deleteTempFiles() {
+        File[] temps = cacheDir.listFiles((dir, name) -> name.startsWith(TEMP_PREFIX));
+        if (temps == null) {
+            return;
+        }
+        for (File temp : temps) {
+            temp.delete();
+        }
+    }
+
+    private void loadIndex() {
+        File index = new File(cacheDir, INDEX_FILE);
+        if (!index.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // key, file name, size, metadata
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 4) {
+                    continue;
+                }
+                File file = fileFor(parts[0]);
+                if (!file.isFile()) {
+                    dirty = true;
+                    continue;
+                }
+                entries.put(parts[0], new Record(file.length(), parts[3]));
+                totalBytes += file.length();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading cache index " + index, e);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private static void copyFile(File src, File dst) throws IOException {
+        try (FileInputStream in = new FileInputStream(src);
+             FileOutputStream out = new FileOutputStream(dst)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+
+    private static class Record {
+        final long bytes;
+        final String meta;
+
+        Record(long bytes, String meta) {
+            this.bytes = bytes;
+            this.meta = meta;
+        }
+    }
+}
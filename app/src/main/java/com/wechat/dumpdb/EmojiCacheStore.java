@@ -0,0 +1,424 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only, content-addressed store of emoji bytes.
+ * <p>
+ * {@code <name>.dat} holds the raw emoji payloads back to back. {@code <name>.idx} is an
+ * open-addressing hash table keyed by md5: a header with the entry count and the number
+ * of live payload bytes, then a power-of-two number of fixed-size slots of md5, offset,
+ * length and format, at most half of them in use. The table is memory-mapped, so opening
+ * the store reads nothing and every lookup, including the first, probes a slot or two.
+ * Adding an entry appends its bytes and fills or overwrites one slot; the table is
+ * rewritten at twice the size once it is half full.
+ * <p>
+ * Compaction writes both files to temporaries and then creates a {@code <name>.compact}
+ * marker before renaming them into place. If the process dies or a rename fails after the
+ * marker exists, the temporary is used where it is and the next open retries the rename,
+ * so data and index always match.
+ */
+public class EmojiCacheStore {
+    private static final String TAG = "EmojiCacheStore";
+    private static final String[] FORMATS = {"png", "jpeg", "gif", "webp"};
+    private static final byte NO_FORMAT = -1;
+    // magic (4) + entry count (4) + live payload bytes (8)
+    private static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x454d4a48;
+    private static final int HEADER_COUNT = 4;
+    private static final int HEADER_LIVE_BYTES = 8;
+    // md5 (16) + offset (8) + length (4) + format (1); a length of 0 marks an empty slot
+    private static final int RECORD_SIZE = 29;
+    private static final int RECORD_OFFSET = 16;
+    private static final int RECORD_LENGTH = 24;
+    private static final int RECORD_FORMAT = 28;
+    private static final int MIN_SLOTS = 1024;
+    // Compact once at least half of the data file is superseded entries
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final File newDataFile;
+    private final File newIndexFile;
+    private final File grownIndexFile;
+    private final File compactMarker;
+    // The files in use; a temporary of a compaction whose rename is still pending
+    private File indexPath;
+    private FileChannel data;
+    private FileChannel index;
+    private MappedByteBuffer table;
+    private int slots;
+
+    public EmojiCacheStore(String basePath) throws IOException {
+        this.dataFile = new File(basePath + ".dat");
+        this.indexFile = new File(basePath + ".idx");
+        this.newDataFile = new File(dataFile.getPath() + ".tmp");
+        this.newIndexFile = new File(indexFile.getPath() + ".tmp");
+        this.grownIndexFile = new File(indexFile.getPath() + ".grow");
+        this.compactMarker = new File(basePath + ".compact");
+        open();
+    }
+
+    public synchronized boolean contains(String md5) {
+        byte[] key = parseMd5(md5);
+        return key != null && table.getInt(findSlot(table, slots, key) + RECORD_LENGTH) != 0;
+    }
+
+    public synchronized int size() {
+        return table.getInt(HEADER_COUNT);
+    }
+
+    /**
+     * @return the cached bytes and format of {@code md5}, or null on a miss
+     */
+    public synchronized CachedEmoji get(String md5) {
+        byte[] key = parseMd5(md5);
+        if (key == null) {
+            return null;
+        }
+        int slot = findSlot(table, slots, key);
+        int length = table.getInt(slot + RECORD_LENGTH);
+        if (length == 0) {
+            return null;
+        }
+        long offset = table.getLong(slot + RECORD_OFFSET);
+        byte format = table.get(slot + RECORD_FORMAT);
+        try {
+            if (offset < 0 || length < 0 || offset + length > data.size()) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (data.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of " + dataFile);
+                }
+            }
+            return new CachedEmoji(buf.array(), format >= 0 && format < FORMATS.length ? FORMATS[format] : null);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cached emoji " + md5, e);
+            return null;
+        }
+    }
+
+    public synchronized void put(String md5, byte[] content, String format) {
+        byte[] key = parseMd5(md5);
+        if (key == null) {
+            Log.w(TAG, "Not caching emoji with invalid md5 " + md5);
+            return;
+        }
+        if (content.length == 0) {
+            return;
+        }
+        try {
+            // Grow before adding, so the table never gets more than half full
+            if ((size() + 1) * 2 > slots) {
+                grow();
+            }
+            long offset = data.size();
+            data.write(ByteBuffer.wrap(content), offset);
+
+            int slot = findSlot(table, slots, key);
+            int oldLength = table.getInt(slot + RECORD_LENGTH);
+            writeRecord(table, slot, key, offset, content.length, formatCode(format));
+            if (oldLength == 0) {
+                table.putInt(HEADER_COUNT, size() + 1);
+            }
+            table.putLong(HEADER_LIVE_BYTES, table.getLong(HEADER_LIVE_BYTES) - oldLength + content.length);
+        } catch (IOException e) {
+            Log.e(TAG, "Error adding emoji " + md5 + " to cache", e);
+        }
+    }
+
+    /**
+     * Force appended entries to disk, compacting first if enough of the store is dead.
+     */
+    public synchronized void flush() {
+        try {
+            long deadBytes = data.size() - table.getLong(HEADER_LIVE_BYTES);
+            if (deadBytes > 0 && deadBytes >= data.size() * COMPACT_RATIO) {
+                compact();
+            }
+            data.force(false);
+            table.force();
+        } catch (IOException e) {
+            Log.e(TAG, "Error flushing emoji cache", e);
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+        closeChannels();
+    }
+
+    /**
+     * Rewrite the store with only the live entries.
+     */
+    public synchronized void compact() throws IOException {
+        if (compactMarker.exists()) {
+            Log.w(TAG, "Not compacting, the previous compaction is not renamed into place yet");
+            return;
+        }
+        int count = size();
+        int newSlots = slotsFor(count + 1);
+        ByteBuffer compacted = newTable(newSlots);
+        int kept = 0;
+        long live = 0;
+        try (FileChannel outData = new RandomAccessFile(newDataFile, "rw").getChannel()) {
+            outData.truncate(0);
+            byte[] key = new byte[16];
+            for (int i = 0; i < slots; i++) {
+                int slot = HEADER_SIZE + i * RECORD_SIZE;
+                int length = table.getInt(slot + RECORD_LENGTH);
+                long offset = table.getLong(slot + RECORD_OFFSET);
+                if (length <= 0 || offset < 0 || offset + length > data.size()) {
+                    continue;
+                }
+                long newOffset = outData.size();
+                data.transferTo(offset, length, outData);
+                readKey(table, slot, key);
+                writeRecord(compacted, findSlot(compacted, newSlots, key), key, newOffset, length,
+                        table.get(slot + RECORD_FORMAT));
+                kept++;
+                live += length;
+            }
+            outData.force(false);
+            compacted.putInt(HEADER_COUNT, kept);
+            compacted.putLong(HEADER_LIVE_BYTES, live);
+            writeFile(newIndexFile, compacted);
+        } catch (IOException e) {
+            newDataFile.delete();
+            newIndexFile.delete();
+            throw e;
+        }
+
+        // Both temporaries are complete; from here on the compaction is committed
+        if (!compactMarker.createNewFile() && !compactMarker.isFile()) {
+            newDataFile.delete();
+            newIndexFile.delete();
+            throw new IOException("Failed to create " + compactMarker);
+        }
+        closeChannels();
+        // Renames the temporaries into place, or opens one where it is if its rename fails
+        open();
+        Log.i(TAG, "Compacted emoji cache to " + kept + " entries");
+    }
+
+    private void open() throws IOException {
+        File parent = dataFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+        grownIndexFile.delete();
+        File dataPath = dataFile;
+        indexPath = indexFile;
+        if (compactMarker.exists()) {
+            // Roll the committed compaction forward; a temporary that is already gone was renamed
+            if (newDataFile.exists() && !newDataFile.renameTo(dataFile)) {
+                Log.w(TAG, "Failed to replace " + dataFile + ", using " + newDataFile);
+                dataPath = newDataFile;
+            }
+            if (newIndexFile.exists() && !newIndexFile.renameTo(indexFile)) {
+                Log.w(TAG, "Failed to replace " + indexFile + ", using " + newIndexFile);
+                indexPath = newIndexFile;
+            }
+            if (dataPath == dataFile && indexPath == indexFile) {
+                compactMarker.delete();
+            }
+        } else {
+            // Drop the temporaries of an uncommitted compaction
+            newDataFile.delete();
+            newIndexFile.delete();
+        }
+        data = new RandomAccessFile(dataPath, "rw").getChannel();
+        index = new RandomAccessFile(indexPath, "rw").getChannel();
+        mapIndex();
+    }
+
+    /**
+     * Map the index file, starting an empty table if it is missing or unreadable.
+     */
+    private void mapIndex() throws IOException {
+        long size = index.size();
+        long tableSlots = (size - HEADER_SIZE) / RECORD_SIZE;
+        boolean valid = size >= HEADER_SIZE + (long) MIN_SLOTS * RECORD_SIZE
+                && (size - HEADER_SIZE) % RECORD_SIZE == 0
+                && tableSlots <= Integer.MAX_VALUE / RECORD_SIZE
+                && Long.bitCount(tableSlots) == 1;
+        if (valid) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            index.read(magic, 0);
+            valid = magic.getInt(0) == MAGIC;
+        }
+        if (!valid) {
+            if (size > 0) {
+                Log.w(TAG, "Discarding unreadable emoji cache index " + indexPath);
+            }
+            // Payloads without an index cannot be found again
+            data.truncate(0);
+            index.truncate(0);
+            ByteBuffer empty = newTable(MIN_SLOTS);
+            while (empty.hasRemaining()) {
+                index.write(empty, empty.position());
+            }
+            index.force(false);
+            tableSlots = MIN_SLOTS;
+        }
+        slots = (int) tableSlots;
+        table = index.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE);
+    }
+
+    /**
+     * Rehash the table into one twice the size, replacing the index file.
+     */
+    private void grow() throws IOException {
+        int newSlots = slots * 2;
+        ByteBuffer grown = newTable(newSlots);
+        byte[] key = new byte[16];
+        for (int i = 0; i < slots; i++) {
+            int slot = HEADER_SIZE + i * RECORD_SIZE;
+            if (table.getInt(slot + RECORD_LENGTH) == 0) {
+                continue;
+            }
+            readKey(table, slot, key);
+            writeRecord(grown, findSlot(grown, newSlots, key), key, table.getLong(slot + RECORD_OFFSET),
+                    table.getInt(slot + RECORD_LENGTH), table.get(slot + RECORD_FORMAT));
+        }
+        grown.putInt(HEADER_COUNT, size());
+        grown.putLong(HEADER_LIVE_BYTES, table.getLong(HEADER_LIVE_BYTES));
+        writeFile(grownIndexFile, grown);
+        if (!grownIndexFile.renameTo(indexPath)) {
+            grownIndexFile.delete();
+            throw new IOException("Failed to replace " + indexPath);
+        }
+        index.close();
+        index = new RandomAccessFile(indexPath, "rw").getChannel();
+        slots = newSlots;
+        table = index.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE);
+    }
+
+    private void closeChannels() {
+        try {
+            data.close();
+            index.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing emoji cache", e);
+        }
+    }
+
+    /**
+     * Smallest table that holds {@code count} entries at most half full.
+     */
+    private static int slotsFor(int count) {
+        int slots = MIN_SLOTS;
+        while (slots < count * 2) {
+            slots *= 2;
+        }
+        return slots;
+    }
+
+    private static ByteBuffer newTable(int slots) {
+        ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + slots * RECORD_SIZE);
+        table.putInt(0, MAGIC);
+        return table;
+    }
+
+    private static void writeFile(File file, ByteBuffer content) throws IOException {
+        try (FileChannel out = new RandomAccessFile(file, "rw").getChannel()) {
+            out.truncate(0);
+            ByteBuffer buf = content.duplicate();
+            buf.rewind();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(false);
+        }
+    }
+
+    /**
+     * Position of the slot holding {@code key}, or of the empty slot it would go into.
+     * Terminates because tables are never more than half full.
+     */
+    private static int findSlot(ByteBuffer table, int slots, byte[] key) {
+        // md5 is uniformly distributed, so its first bytes are hash enough
+        int i = ((key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8 | (key[3] & 0xff))
+                & (slots - 1);
+        while (true) {
+            int slot = HEADER_SIZE + i * RECORD_SIZE;
+            if (table.getInt(slot + RECORD_LENGTH) == 0 || keyEquals(table, slot, key)) {
+                return slot;
+            }
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    private static boolean keyEquals(ByteBuffer table, int slot, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (table.get(slot + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readKey(ByteBuffer table, int slot, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            key[i] = table.get(slot + i);
+        }
+    }
+
+    private static void writeRecord(ByteBuffer table, int slot, byte[] key, long offset, int length,
+                                    byte format) {
+        for (int i = 0; i < key.length; i++) {
+            table.put(slot + i, key[i]);
+        }
+        table.putLong(slot + RECORD_OFFSET, offset);
+        table.put(slot + RECORD_FORMAT, format);
+        // Written last, since a non-zero length is what makes the slot count as used
+        table.putInt(slot + RECORD_LENGTH, length);
+    }
+
+    /**
+     * @return the 16 bytes of a hex md5 in either case, or null if {@code md5} is not one
+     */
+    private static byte[] parseMd5(String md5) {
+        if (md5 == null || md5.length() != 32) {
+            return null;
+        }
+        byte[] key = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            int high = Character.digit(md5.charAt(i * 2), 16);
+            int low = Character.digit(md5.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            key[i] = (byte) (high << 4 | low);
+        }
+        return key;
+    }
+
+    private static byte formatCode(String format) {
+        for (int i = 0; i < FORMATS.length; i++) {
+            if (FORMATS[i].equals(format)) {
+                return (byte) i;
+            }
+        }
+        return NO_FORMAT;
+    }
+
+    public static class CachedEmoji {
+        public final byte[] data;
+        public final String format;
+
+        CachedEmoji(byte[] data, String format) {
+            this.data = data;
+            this.format = format;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the files in the emoji directory and its group subdirectories, keyed by full
+ * name and by the md5 their names start with. Built by one scan and persisted together
+ * with each directory's mtime as soon as the scan finishes, so later runs only rescan
+ * directories that changed.
+ */
+public class EmojiDirIndex {
+    private static final String TAG = "EmojiDirIndex";
+    private static final int MD5_LENGTH = 32;
+
+    private final Path emojiDir;
+    private final File indexFile;
+    // relative dir ("" for the emoji dir itself) -> its mtime and file names
+    private Map<String, DirEntry> dirs;
+    // file name -> files with that name
+    private Map<String, List<Path>> byName;
+    // md5 prefix of a file name -> matching files
+    private Map<String, List<Path>> byMd5;
+    private boolean dirty;
+
+    /**
+     * @param indexFile where the index is persisted, or null to keep it in memory only
+     */
+    public EmojiDirIndex(Path emojiDir, File indexFile) {
+        this.emojiDir = emojiDir;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Files in {@code dir} named exactly {@code md5}, or, with {@code prefix}, starting with it.
+     */
+    public synchronized List<Path> find(Path dir, String md5, boolean prefix) {
+        if (byMd5 == null) {
+            build();
+        }
+        if (prefix && md5.length() != MD5_LENGTH) {
+            return scanPrefix(dir, md5);
+        }
+        List<Path> all = (prefix ? byMd5 : byName).get(md5);
+        if (all == null) {
+            return Collections.emptyList();
+        }
+        List<Path> result = new ArrayList<>(1);
+        for (Path path : all) {
+            if (path.getParent().equals(dir)) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prefix match for ids that are not a full md5, over the names of {@code dir} only.
+     */
+    private List<Path> scanPrefix(Path dir, String id) {
+        DirEntry entry = dirs.get(emojiDir.relativize(dir).toString());
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        List<Path> result = new ArrayList<>(1);
+        for (String name : entry.names) {
+            if (name.startsWith(id)) {
+                result.add(dir.resolve(name));
+            }
+        }
+        return result;
+    }
+
+    public synchronized void save() {
+        if (!dirty || indexFile == null) {
+            return;
+        }
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, DirEntry> e : dirs.entrySet()) {
+                writer.write("D\t" + e.getKey() + "\t" + e.getValue().mtime);
+                writer.newLine();
+                for (String name : e.getValue().names) {
+                    writer.write("F\t" + name);
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving emoji dir index", e);
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) {
+            Log.e(TAG, "Error replacing emoji dir index " + indexFile);
+            return;
+        }
+        dirty = false;
+    }
+
+    private void build() {
+        Map<String, DirEntry> persisted = load();
+        dirs = new HashMap<>();
+        byName = new HashMap<>();
+        byMd5 = new HashMap<>();
+
+        List<String> relDirs = new ArrayList<>();
+        relDirs.add("");
+        File[] subdirs = emojiDir.toFile().listFiles(File::isDirectory);
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                relDirs.add(subdir.getName());
+            }
+        }
+
+        int rescanned = 0;
+        for (String relDir : relDirs) {
+            File dir = emojiDir.resolve(relDir).toFile();
+            long mtime = dir.lastModified();
+            DirEntry entry = persisted.get(relDir);
+            if (entry == null || entry.mtime != mtime) {
+                entry = scan(dir, mtime);
+                rescanned++;
+                dirty = true;
+            }
+            dirs.put(relDir, entry);
+            Path dirPath = emojiDir.resolve(relDir);
+            for (String name : entry.names) {
+                Path path = dirPath.resolve(name);
+                addTo(byName, name, path);
+                if (name.length() >= MD5_LENGTH) {
+                    addTo(byMd5, name.substring(0, MD5_LENGTH), path);
+                }
+            }
+        }
+        if (persisted.size() != relDirs.size()) {
+            dirty = true;
+        }
+        Log.i(TAG, "Indexed " + byName.size() + " emoji names in " + relDirs.size()
+                + " dirs, rescanned " + rescanned);
+        // Persist right away rather than relying on a flush at the end of the export
+        save();
+    }
+
+    private static void addTo(Map<String, List<Path>> map, String key, Path path) {
+        List<Path> paths = map.get(key);
+        if (paths == null) {
+            paths = new ArrayList<>(1);
+            map.put(key, paths);
+        }
+        paths.add(path);
+    }
+
+    private DirEntry scan(File dir, long mtime) {
+        List<String> names = new ArrayList<>();
+        File[] files = dir.listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                names.add(file.getName());
+            }
+        }
+        return new DirEntry(mtime, names);
+    }
+
+    private Map<String, DirEntry> load() {
+        Map<String, DirEntry> loaded = new HashMap<>();
+        if (indexFile == null || !indexFile.isFile()) {
+            return loaded;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            DirEntry current = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("D\t")) {
+                    String[] parts = line.split("\t", -1);
+                    current = new DirEntry(Long.parseLong(parts[2]), new ArrayList<>());
+                    loaded.put(parts[1], current);
+                } else if (line.startsWith("F\t") && current != null) {
+                    current.names.add(line.substring(2));
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading emoji dir index", e);
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private static class DirEntry {
+        final long mtime;
+        final List<String> names;
+
+        DirEntry(long mtime, List<String> names) {
+            this.mtime = mtime;
+            this.names = names;
+        }
+    }
+}
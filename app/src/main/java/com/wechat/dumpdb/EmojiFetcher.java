@@ -0,0 +1,143 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import com.wechat.dumpdb.common.TextUtil;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Downloads emojis from their CDN or encrypted URL asynchronously.
+ * <p>
+ * Requests go through the given {@link MediaFetcher}, and concurrent fetches of
+ * the same md5 share one download. Content that can be trusted is handed to the
+ * {@code onFetched} callback once, so it can be cached.
+ */
+public class EmojiFetcher {
+    private static final String TAG = "EmojiFetcher";
+
+    private final MediaFetcher mediaFetcher;
+    private final BiConsumer<String, byte[]> onFetched;
+    private final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+    public EmojiFetcher(MediaFetcher mediaFetcher, BiConsumer<String, byte[]> onFetched) {
+        this.mediaFetcher = mediaFetcher;
+        this.onFetched = onFetched;
+    }
+
+    /**
+     * Fetch emoji {@code md5}, trying {@code cdnUrl} first and then {@code encryptUrl}.
+     * The future completes with {@link Result#NOT_FOUND} if there is nothing to fetch or every
+     * URL answered 404/410, and with null if the fetch failed otherwise; it never fails.
+     */
+    public CompletableFuture<Result> fetch(String md5, String cdnUrl, String encryptUrl, String aesKey) {
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> existing = inFlight.putIfAbsent(md5, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        fetchCdn(md5, cdnUrl)
+                .thenCompose(result -> result != null && result.verified
+                        ? CompletableFuture.completedFuture(result)
+                        : fetchEncrypted(md5, encryptUrl, aesKey, result))
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Error fetching emoji " + md5, e);
+                        result = null;
+                    }
+                    if (result != null && result.data != null && result.verified) {
+                        onFetched.accept(md5, result.data);
+                    }
+                    inFlight.remove(md5, future);
+                    future.complete(result);
+                });
+        return future;
+    }
+
+    public boolean isFetching(String md5) {
+        return inFlight.containsKey(md5);
+    }
+
+    private CompletableFuture<Result> fetchCdn(String md5, String cdnUrl) {
+        if (cdnUrl == null || cdnUrl.isEmpty()) {
+            return CompletableFuture.completedFuture(Result.NOT_FOUND);
+        }
+        Log.i(TAG, "Requesting emoji " + md5 + " from " + cdnUrl + " ...");
+        return mediaFetcher.fetchBytesAsync(cdnUrl).handle((content, e) -> {
+            if (e != null) {
+                Log.d(TAG, "Error processing cdnurl " + cdnUrl, e);
+                return MediaFetcher.isNotFound(e) ? Result.NOT_FOUND : null;
+            }
+            boolean verified = md5.equals(TextUtil.md5(content));
+            if (!verified) {
+                Log.d(TAG, "Emoji MD5 from CDNURL does not match: " + cdnUrl);
+            }
+            // Content with a wrong md5 is still usable, but isn't cached
+            return new Result(content, verified);
+        });
+    }
+
+    private CompletableFuture<Result> fetchEncrypted(String md5, String encryptUrl, String aesKey, Result fallback) {
+        if (encryptUrl == null || encryptUrl.isEmpty()) {
+            return CompletableFuture.completedFuture(fallback);
+        }
+        Log.i(TAG, "Requesting encrypted emoji " + md5 + " from " + encryptUrl + " ...");
+        return mediaFetcher.fetchBytesAsync(encryptUrl).handle((buf, e) -> {
+            if (e != null) {
+                Log.e(TAG, "Error processing encrypturl " + encryptUrl, e);
+                // Gone only if the CDN url was gone as well
+                return MediaFetcher.isNotFound(e) ? fallback : withData(fallback);
+            }
+            if (buf.length == 0) {
+                Log.e(TAG, "Failed to download emoji " + md5);
+                return null;
+            }
+            try {
+                byte[] aesKeyBytes = hexStringToByteArray(aesKey);
+                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKeyBytes, "AES"),
+                        new IvParameterSpec(aesKeyBytes));
+                return new Result(cipher.doFinal(buf), true);
+            } catch (Exception ex) {
+                Log.e(TAG, "Error decrypting emoji from " + encryptUrl, ex);
+                return withData(fallback);
+            }
+        });
+    }
+
+    private static Result withData(Result result) {
+        return result != null && result.data != null ? result : null;
+    }
+
+    private static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i + 1), 16));
+        }
+        return data;
+    }
+
+    public static class Result {
+        // No content: the emoji has no URL, or its URLs are gone
+        public static final Result NOT_FOUND = new Result(null, false);
+
+        public final byte[] data;
+        // Whether the content is known to be the requested emoji, and so can be cached
+        public final boolean verified;
+
+        Result(byte[] data, boolean verified) {
+            this.data = data;
+            this.verified = verified;
+        }
+    }
+}
@@ -4,48 +4,44 @@ import android.graphics.BitmapFactory;
 import android.util.Base64;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import com.wechat.dumpdb.common.TextUtil;
+
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-
 public class EmojiReader {
     private static final String TAG = "EmojiReader";
-    private static final String DEFAULT_EMOJI_CACHE = "emoji.cache";
+    private static final String EMOJI_DIR_INDEX = "emoji.dirs";
 
     private Path emojiDir;
     private WeChatDBParser parser;
     private Map<String, EmojiInfo> emojiInfo;
     private String cacheFile;
     private WxgfAndroidDecoder wxgfDecoder;
-    private Map<String, CacheEntry> cache;
-    private int cacheSize;
+    private EmojiCacheStore cache;
+    private EmojiDirIndex dirIndex;
     private byte[] encryptionKey;
-    private OkHttpClient httpClient;
-
-    public EmojiReader(String resourceDir, WeChatDBParser parser, WxgfAndroidDecoder wxgfDecoder, String cacheFile) {
+    private EmojiFetcher fetcher;
+    private NegativeCache negativeCache;
+
+    /**
+     * @param cacheFile absolute path of the persistent emoji cache, or null to cache nothing
+     */
+    public EmojiReader(String resourceDir, WeChatDBParser parser, WxgfAndroidDecoder wxgfDecoder,
+                       MediaFetcher mediaFetcher, String cacheFile) {
         this.emojiDir = Paths.get(resourceDir, "emoji");
         if (!Files.isDirectory(this.emojiDir)) {
             throw new IllegalArgumentException("Emoji directory not found: " + this.emojiDir);
@@ -57,12 +53,21 @@ public class EmojiReader {
             this.emojiInfo = new HashMap<>();
         }
 
-        this.cacheFile = cacheFile != null ? cacheFile : DEFAULT_EMOJI_CACHE;
+        // A relative path would resolve against the process working directory, "/" on Android
+        if (cacheFile != null && !new File(cacheFile).isAbsolute()) {
+            throw new IllegalArgumentException("Emoji cache path must be absolute: " + cacheFile);
+        }
+        this.cacheFile = cacheFile;
         this.wxgfDecoder = wxgfDecoder;
-        this.httpClient = new OkHttpClient();
+        this.fetcher = new EmojiFetcher(mediaFetcher,
+                (md5, content) -> cacheAdd(md5, content, MediaSniffer.getImageFormat(content)));
+        this.dirIndex = new EmojiDirIndex(emojiDir, cacheFile == null ? null
+                : new File(new File(this.cacheFile).getParentFile(), EMOJI_DIR_INDEX));
 
         // Load cache
-        loadCache();
+        if (cacheFile != null) {
+            loadCache();
+        }
 
         // Set up encryption key
         String encKey = parser.getEmojiEncryptionKey();
@@ -71,6 +76,10 @@ public class EmojiReader {
         }
     }
 
+    public void setNegativeCache(NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
     private byte[] getAesKey(String md5) {
         // ASCII representation of the first half of md5 is used as AES key
         if (md5.length() != 32) {
@@ -93,6 +102,9 @@ public class EmojiReader {
         // Check resource directory
         String subdir = parser.getEmojiGroups().getOrDefault(md5, "");
         Path dirToSearch = emojiDir.resolve(subdir);
+        if (negativeCache != null && negativeCache.isMissing(NegativeCache.TYPE_EMOJI, md5, dirToSearch.toFile())) {
+            return new EmojiResult(null, null);
+        }
         EmojiResult result = searchInRes(dirToSearch, md5, false);
         if (result.format != null) {
             return result;
@@ -100,11 +112,18 @@ public class EmojiReader {
 
         // Try to fetch from URL
         EmojiInfo info = emojiInfo.get(md5);
+        // Only remember the emoji as missing if no download could bring it back
+        boolean gone = true;
         if (info != null) {
-            result = fetch(md5, info.getCdnUrl(), info.getEncryptUrl(), info.getAesKey());
-            if (result.format != null) {
-                return result;
+            EmojiFetcher.Result fetched = fetch(md5, info.getCdnUrl(), info.getEncryptUrl(), info.getAesKey());
+            if (fetched != null && fetched.data != null) {
+                // Unverified content is returned as well, it just isn't cached
+                String format = MediaSniffer.getImageFormat(fetched.data);
+                if (format != null) {
+                    return new EmojiResult(Base64.encodeToString(fetched.data, Base64.NO_WRAP), format);
+                }
             }
+            gone = fetched == EmojiFetcher.Result.NOT_FOUND;
         }
 
         // Fallback search
@@ -116,73 +135,78 @@ public class EmojiReader {
             boolean emojiInTable = info != null;
             String msg = emojiInTable ? "group='" + subdir + "'" : "not in database";
             Log.w(TAG, "Cannot find emoji " + md5 + ": " + msg);
+            if (negativeCache != null && gone) {
+                negativeCache.record(NegativeCache.TYPE_EMOJI, md5, msg, dirToSearch.toFile());
+            }
             return new EmojiResult(null, null);
         }
     }
 
     private EmojiResult cacheQuery(String md5) {
-        CacheEntry entry = cache.get(md5);
+        EmojiCacheStore.CachedEmoji entry = cache != null ? cache.get(md5) : null;
         if (entry != null) {
-            return new EmojiResult(entry.data, entry.format);
+            return new EmojiResult(Base64.encodeToString(entry.data, Base64.NO_WRAP), entry.format);
         }
         return new EmojiResult(null, null);
     }
 
-    private void cacheAdd(String md5, String data, String format) {
-        cache.put(md5, new CacheEntry(data, format));
-        if (cache.size() >= cacheSize + 15) {
-            flushCache();
+    private void cacheAdd(String md5, byte[] content, String format) {
+        if (cache != null) {
+            cache.put(md5, content, format);
         }
     }
 
     public void flushCache() {
-        if (cache.size() > cacheSize) {
-            cacheSize = cache.size();
-            saveCache();
+        if (cache != null) {
+            cache.flush();
         }
+        dirIndex.save();
     }
 
-    private void loadCache() {
-        cache = new HashMap<>();
-        cacheSize = 0;
-
-        File file = new File(cacheFile);
-        if (file.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                cache = (Map<String, CacheEntry>) ois.readObject();
-                cacheSize = cache.size();
-            } catch (Exception e) {
-                Log.e(TAG, "Error loading cache", e);
-                cache = new HashMap<>();
-            }
+    /**
+     * Flush and close the cache; the reader must not be used afterwards.
+     */
+    public void close() {
+        if (cache != null) {
+            cache.close();
         }
+        dirIndex.save();
     }
 
-    private void saveCache() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(cacheFile))) {
-            oos.writeObject(cache);
+    private void loadCache() {
+        try {
+            cache = new EmojiCacheStore(cacheFile);
         } catch (IOException e) {
-            Log.e(TAG, "Error saving cache", e);
+            throw new IllegalStateException("Cannot open emoji cache " + cacheFile, e);
         }
+        migrateLegacyCache();
     }
 
-    private EmojiResult searchInRes(Path dir, String md5, boolean allowFallback) {
-        List<Path> candidates = new ArrayList<>();
-
-        if (allowFallback) {
-            try (Stream<Path> stream = Files.list(dir)) {
-                candidates = stream.filter(p -> p.getFileName().toString().startsWith(md5))
-                        .collect(ArrayList::new, (list, item) -> list.add(item), ArrayList::addAll);
-            } catch (IOException e) {
-                Log.e(TAG, "Error listing directory " + dir, e);
-                return new EmojiResult(null, null);
-            }
-        } else {
-            Path exactMatch = dir.resolve(md5);
-            if (Files.isRegularFile(exactMatch)) {
-                candidates.add(exactMatch);
+    /**
+     * Import the old ObjectOutputStream-serialized cache into the store once, then remove it.
+     */
+    private void migrateLegacyCache() {
+        File file = new File(cacheFile);
+        if (!file.isFile()) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            Map<String, CacheEntry> legacy = (Map<String, CacheEntry>) ois.readObject();
+            for (Map.Entry<String, CacheEntry> e : legacy.entrySet()) {
+                if (!cache.contains(e.getKey())) {
+                    cache.put(e.getKey(), Base64.decode(e.getValue().data, Base64.DEFAULT), e.getValue().format);
+                }
             }
+            cache.flush();
+            Log.i(TAG, "Migrated " + legacy.size() + " emojis from legacy cache " + cacheFile);
+        } catch (Exception e) {
+            Log.e(TAG, "Error migrating legacy cache", e);
         }
+        file.delete();
+    }
+
+    private EmojiResult searchInRes(Path dir, String md5, boolean allowFallback) {
+        List<Path> candidates = dirIndex.find(dir, md5, allowFallback);
 
         for (Path candidate : candidates) {
             if (!Files.isRegularFile(candidate)) {
@@ -209,23 +233,26 @@ public class EmojiReader {
     }
 
     private EmojiResult getDataNoFallback(Path fname, String expectedMd5) throws Exception {
+        // Read the file once; every check below works on this buffer
+        byte[] content = Files.readAllBytes(fname);
+        MediaSniffer.Type type = MediaSniffer.sniff(content, encryptionKey);
+        if (!type.isImage() && type != MediaSniffer.Type.ENCRYPTED_EMOJI) {
+            throw new Exception("Unrecognized emoji file: " + type);
+        }
+
         // Try as regular image first
-        String imageFormat = getImageFormat(fname);
-        if (imageFormat != null) {
-            String fileMd5 = getFileMd5(fname);
-            if (expectedMd5.equals(fileMd5)) {
-                String b64 = getFileB64(fname);
-                return new EmojiResult(b64, imageFormat);
-            }
+        String imageFormat = MediaSniffer.getImageFormat(content);
+        if (imageFormat != null && expectedMd5.equals(TextUtil.md5(content))) {
+            return new EmojiResult(Base64.encodeToString(content, Base64.NO_WRAP), imageFormat);
         }
 
         // Try decryption
-        byte[] content = decryptEmoji(fname);
-        String dataMd5 = getMd5Hex(content);
+        decryptHead(content);
+        String dataMd5 = TextUtil.md5(content);
 
         if (!dataMd5.equals(expectedMd5)) {
-            if (WxgfAndroidDecoder.isWxgfBuffer(content)) {
-                content = wxgfDecoder.decodeWithCache(fname.toString(), content);
+            if (MediaSniffer.sniff(content) == MediaSniffer.Type.WXGF) {
+                content = wxgfDecoder.decodeAnimatedWithCache(fname.toString(), content);
                 if (content == null) {
                     throw new Exception("Failed to decrypt wxgf file.");
                 }
@@ -234,26 +261,31 @@ public class EmojiReader {
             }
         }
 
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(content, 0, content.length, options);
-
-        String format = getFormatFromMimeType(options.outMimeType);
+        String format = MediaSniffer.getImageFormat(content);
+        if (format == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(content, 0, content.length, options);
+            format = getFormatFromMimeType(options.outMimeType);
+        }
         String b64 = Base64.encodeToString(content, Base64.NO_WRAP);
         return new EmojiResult(b64, format);
     }
 
     private EmojiResult getDataFallback(Path fname) throws Exception {
-        String imageFormat = getImageFormat(fname);
-        if (imageFormat == null) {
+        MediaSniffer.Type type = MediaSniffer.getInstance().sniffFile(fname.toString());
+        if (!type.isImage()) {
             return new EmojiResult(null, null); // Fallback files are not encrypted
         }
 
-        String b64 = getFileB64(fname);
-        return new EmojiResult(b64, imageFormat);
+        String b64 = Base64.encodeToString(Files.readAllBytes(fname), Base64.NO_WRAP);
+        return new EmojiResult(b64, type.format);
     }
 
-    private byte[] decryptEmoji(Path fname) throws Exception {
+    /**
+     * Decrypt an emoji file's content in place. Only the first 1KB is encrypted.
+     */
+    private void decryptHead(byte[] content) throws Exception {
         if (encryptionKey == null) {
             throw new Exception("No encryption key available");
         }
@@ -262,156 +294,46 @@ public class EmojiReader {
         SecretKeySpec keySpec = new SecretKeySpec(encryptionKey, "AES");
         cipher.init(Cipher.DECRYPT_MODE, keySpec);
 
-        try (FileInputStream fis = new FileInputStream(fname.toFile())) {
-            byte[] head = new byte[1024];
-            int headLen = fis.read(head);
-            byte[] plainHead = cipher.doFinal(head, 0, headLen);
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            baos.write(plainHead);
-
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                baos.write(buffer, 0, bytesRead);
-            }
-
-            return baos.toByteArray();
-        }
+        int headLen = Math.min(content.length, 1024);
+        cipher.doFinal(content, 0, headLen, content, 0);
     }
 
-    private EmojiResult fetch(String md5, String cdnUrl, String encryptUrl, String aesKey) {
-        EmojiResult result = null;
-
-        // Try CDN URL first
-        if (cdnUrl != null && !cdnUrl.isEmpty()) {
-            try {
-                Log.i(TAG, "Requesting emoji " + md5 + " from " + cdnUrl + " ...");
-                byte[] content = downloadUrl(cdnUrl);
-                String emojiMd5 = getMd5Hex(content);
-                String format = getFormatFromBytes(content);
-                String b64 = Base64.encodeToString(content, Base64.NO_WRAP);
-                result = new EmojiResult(b64, format);
-
-                if (emojiMd5.equals(md5)) {
-                    cacheAdd(md5, b64, format);
-                    return result;
-                } else {
-                    throw new Exception("Emoji MD5 from CDNURL does not match");
-                }
-            } catch (Exception e) {
-                Log.d(TAG, "Error processing cdnurl " + cdnUrl, e);
+    /**
+     * Start downloading the emojis in {@code md5s} that are neither cached nor in the
+     * resource directory, so {@link #getEmoji} only has to wait for them.
+     */
+    public void prefetch(Collection<String> md5s) {
+        for (String md5 : md5s) {
+            if (md5 == null || md5.isEmpty() || (cache != null && cache.contains(md5))) {
+                continue;
             }
-        }
-
-        // Try encrypted URL
-        if (encryptUrl != null && !encryptUrl.isEmpty()) {
-            try {
-                Log.i(TAG, "Requesting encrypted emoji " + md5 + " from " + encryptUrl + " ...");
-                byte[] buf = downloadUrl(encryptUrl);
-                if (buf.length == 0) {
-                    Log.e(TAG, "Failed to download emoji " + md5);
-                    return new EmojiResult(null, null);
-                }
-
-                byte[] aesKeyBytes = hexStringToByteArray(aesKey);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                SecretKeySpec keySpec = new SecretKeySpec(aesKeyBytes, "AES");
-                IvParameterSpec ivSpec = new IvParameterSpec(aesKeyBytes);
-                cipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-
-                byte[] decryptedBuf = cipher.doFinal(buf);
-                String format = getFormatFromBytes(decryptedBuf);
-                String b64 = Base64.encodeToString(decryptedBuf, Base64.NO_WRAP);
-                result = new EmojiResult(b64, format);
-
-                cacheAdd(md5, b64, format);
-                return result;
-            } catch (Exception e) {
-                Log.e(TAG, "Error processing encrypturl " + encryptUrl, e);
+            EmojiInfo info = emojiInfo.get(md5);
+            if (info == null || fetcher.isFetching(md5)) {
+                continue;
             }
-        }
-
-        // Return result with wrong md5 if available, but don't cache
-        if (result != null) {
-            return result;
-        }
-
-        return new EmojiResult(null, null);
-    }
-
-    private byte[] downloadUrl(String urlString) throws Exception {
-        Request request = new Request.Builder()
-                .url(urlString)
-                .build();
-        Response response = httpClient.newCall(request).execute();
-        return response.body().bytes();
-    }
-
-    // Helper methods
-    private String getMd5Hex(byte[] data) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] hash = md.digest(data);
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b));
+            Path dir = emojiDir.resolve(parser.getEmojiGroups().getOrDefault(md5, ""));
+            if (negativeCache != null && negativeCache.isMissing(NegativeCache.TYPE_EMOJI, md5, dir.toFile())) {
+                continue;
+            }
+            if (dirIndex.find(dir, md5, false).isEmpty()) {
+                fetcher.fetch(md5, info.getCdnUrl(), info.getEncryptUrl(), info.getAesKey());
             }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 not available", e);
         }
     }
 
-    private String getFileMd5(Path path) throws Exception {
-        byte[] data = Files.readAllBytes(path);
-        return getMd5Hex(data);
-    }
-
-    private String getFileB64(Path path) throws Exception {
-        byte[] data = Files.readAllBytes(path);
-        return Base64.encodeToString(data, Base64.NO_WRAP);
-    }
-
-    private String getImageFormat(Path path) {
+    /**
+     * @return the fetched emoji, {@link EmojiFetcher.Result#NOT_FOUND}, or null if the fetch failed
+     */
+    private EmojiFetcher.Result fetch(String md5, String cdnUrl, String encryptUrl, String aesKey) {
         try {
-            byte[] header = new byte[12];
-            try (FileInputStream fis = new FileInputStream(path.toFile())) {
-                fis.read(header);
-            }
-            return detectImageFormat(header);
+            return fetcher.fetch(md5, cdnUrl, encryptUrl, aesKey).get();
         } catch (Exception e) {
+            Log.e(TAG, "Error fetching emoji " + md5, e);
             return null;
         }
     }
 
-    private String detectImageFormat(byte[] header) {
-        if (header.length >= 4) {
-            // PNG
-            if (header[0] == (byte) 0x89 && header[1] == 0x50 && header[2] == 0x4E && header[3] == 0x47) {
-                return "png";
-            }
-            // JPEG
-            if (header[0] == (byte) 0xFF && header[1] == (byte) 0xD8) {
-                return "jpeg";
-            }
-            // GIF
-            if (header[0] == 0x47 && header[1] == 0x49 && header[2] == 0x46) {
-                return "gif";
-            }
-            // WebP
-            if (header.length >= 12 && header[0] == 0x52 && header[1] == 0x49 && header[2] == 0x46 && header[3] == 0x46 &&
-                    header[8] == 0x57 && header[9] == 0x45 && header[10] == 0x42 && header[11] == 0x50) {
-                return "webp";
-            }
-        }
-        return null;
-    }
-
-    private String getFormatFromBytes(byte[] data) {
-        return detectImageFormat(data);
-    }
-
+    // Helper methods
     private String getFormatFromMimeType(String mimeType) {
         if (mimeType == null) return null;
         if (mimeType.equals("image/png")) return "png";
@@ -421,16 +343,6 @@ public class EmojiReader {
         return null;
     }
 
-    private byte[] hexStringToByteArray(String s) {
-        int len = s.length();
-        byte[] data = new byte[len / 2];
-        for (int i = 0; i < len; i += 2) {
-            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i + 1), 16));
-        }
-        return data;
-    }
-
     // Data classes
     public static class EmojiResult {
         public final String data;
@@ -442,6 +354,7 @@ public class EmojiReader {
         }
     }
 
+    // Entry of the legacy serialized cache, kept for migration
     private static class CacheEntry implements Serializable {
         final String data;
         final String format;
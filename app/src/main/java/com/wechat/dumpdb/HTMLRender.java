@@ -10,6 +10,7 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.sqlite.date.DateFormatUtils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,6 +39,7 @@ public class HTMLRender {
     private WeChatFilePathResolver filePathResolver;
     private Resource resourceManager;
     private Map<Integer, Integer> unknownTypeCounts;
+    private AvatarRegistry avatarRegistry;
 
 
     public HTMLRender(Context context, WeChatDBParser parser, Resource resourceManager, WeChatFilePathResolver filePathResolver) {
@@ -46,6 +48,68 @@ public class HTMLRender {
         this.resourceManager = resourceManager;
         this.unknownTypeCounts = new HashMap<>();
         this.filePathResolver = filePathResolver;
+        this.avatarRegistry = new AvatarRegistry(resourceManager,
+                new File(context.getExternalCacheDir(), "wechatdump_avatar_" + System.currentTimeMillis()));
+    }
+
+    public AvatarRegistry getAvatarRegistry() {
+        return avatarRegistry;
+    }
+
+    /**
+     * Start resolving the avatars of everyone in {@code messages} in parallel,
+     * so rendering does not wait on them one by one.
+     */
+    public void prefetchAvatars(List<WeChatMsg> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        Set<String> talkers = extractTalkers(messages);
+        if (parser.getUsername() != null) {
+            talkers.add(parser.getUsername());
+        }
+        resourceManager.prefetchAvatars(talkers);
+    }
+
+    /**
+     * Start decoding the pictures of the image messages in {@code messages} in parallel.
+     */
+    public void prefetchImages(List<WeChatMsg> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        List<List<String>> images = new ArrayList<>();
+        for (WeChatMsg msg : messages) {
+            if (msg.getType() != WeChatMsg.TYPE_IMG) {
+                continue;
+            }
+            String imgPath = extractImagePath(msg.getImgPath());
+            if (imgPath == null || imgPath.isEmpty()) {
+                continue;
+            }
+            List<String> filenames = new ArrayList<>();
+            filenames.add(imgPath);
+            String bigImgPath = parser.getImgInfo().get(String.valueOf(msg.getMsgSvrId()));
+            if (bigImgPath != null) filenames.add(bigImgPath);
+            images.add(filenames);
+        }
+        resourceManager.prefetchImages(images);
+    }
+
+    /**
+     * Start downloading the emojis used in {@code messages} that are not available locally.
+     */
+    public void prefetchEmojis(List<WeChatMsg> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        Set<String> md5s = new HashSet<>();
+        for (WeChatMsg msg : messages) {
+            if (msg.getType() == WeChatMsg.TYPE_EMOJI || msg.getType() == WeChatMsg.TYPE_CUSTOM_EMOJI) {
+                md5s.add(extractEmojiMd5(msg));
+            }
+        }
+        resourceManager.prefetchEmojis(md5s);
     }
 
     /**
@@ -71,6 +135,13 @@ public class HTMLRender {
             formatDict.put("nickname", " ");
         }
         formatDict.put("data", msg.getContent());
+
+        // Reference the sender's avatar instead of inlining it in every message
+        String avatarId = avatarRegistry.getAvatarId(msg.getIsSend() == 1 ? parser.getUsername() : msg.getTalker());
+        if (avatarId != null) {
+            formatDict.put("avatar_id", avatarId);
+            formatDict.put("avatar", avatarRegistry.getAvatarPath(avatarId));
+        }
         switch (msg.getType()) {
             case WeChatMsg.TYPE_SPEAK:
                 renderVoiceMessage(msg, formatDict);
@@ -122,6 +193,13 @@ public class HTMLRender {
         if (voiceData != null) {
             formatDict.put("voice_duration", voiceData.duration);
             formatDict.put("voice_path", voiceData.mp3Url);
+            formatDict.put("voice_format", voiceData.format);
+            if (voiceData.mp3Url != null && !voiceData.mp3Url.isEmpty()) {
+                // The source type tells the player whether it got MP3 or Opus
+                String content = String.format("<audio controls preload=\"none\"><source src=\"%s\" type=\"%s\"></audio>",
+                        voiceData.mp3Url, voiceData.getMimeType());
+                formatDict.put("content", content);
+            }
         }
     }
 
@@ -185,7 +263,7 @@ public class HTMLRender {
     }
 
     private void renderVideoMessage(WeChatMsg msg, Map<String, Object> formatDict) {
-        String videoPath = resourceManager.getVideo(msg.getImgPath());
+        String videoPath = resourceManager.getVideo(msg.getImgPath(), msg.getReserved());
         if (videoPath != null) {
             if (videoPath.endsWith(".mp4")) {
 //            String videoBase64 = TextUtil.getFileB64(videoPath);
@@ -198,15 +276,8 @@ public class HTMLRender {
             }
             formatDict.put("filePath", videoPath);
         } else {
-            // 解析视频信息
-            WeChatCDNVideoDecoder.WeChatVideoInfo videoInfo = WeChatCDNVideoDecoder.parseReservedContent(msg.getReserved());
-            if (videoInfo != null) {
-                String downloadUrl = WeChatCDNVideoDecoder.buildCdnDownloadUrl(videoInfo.cdnVideoUrl, videoInfo.aesKey);
-                formatDict.put("filePath", downloadUrl);
-            } else {
-                Log.w(TAG, "Cannot find video: " + msg.getImgPath());
-                formatDict.put("content", "VIDEO FILE " + msg.getImgPath());
-            }
+            Log.w(TAG, "Cannot find video: " + msg.getImgPath());
+            formatDict.put("content", "VIDEO FILE " + msg.getImgPath());
         }
     }
 
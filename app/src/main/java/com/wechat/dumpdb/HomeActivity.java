@@ -44,6 +44,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -68,6 +70,12 @@ public class HomeActivity extends AppCompatActivity {
 
     private static final String TAG = "HomeActivity";
 
+    // 语音输出格式，改为 AudioResult.FORMAT_OGG 则输出体积更小的 Opus
+    private static final String VOICE_FORMAT = AudioResult.FORMAT_MP3;
+
+    // 基准测试耗时较长，放到后台线程执行，避免阻塞UI线程
+    private final ExecutorService benchmarkExecutor = Executors.newSingleThreadExecutor();
+
     static {
         System.loadLibrary("wechatcommon");
     }
@@ -128,14 +136,25 @@ public class HomeActivity extends AppCompatActivity {
                     return;
                 }
                 Resource resource = new Resource(dbParser, USER_ROOT, "avatar.index", getBaseContext());
-                resource.cacheVoiceMp3(msgList);
-                HTMLRender render = new HTMLRender(getBaseContext(), dbParser, resource, filePathResolver);
-                List<Map<String, Object>> dataList = new ArrayList<>();
-                for (WeChatMsg chatMsg : msgList) {
-//                    if (!"190".equals(chatMsg.getMsgId())) {
-//                        continue;
-//                    }
-                    dataList.add(render.renderMessage(chatMsg));
+                try {
+                    resource.setVoiceFormat(VOICE_FORMAT);
+                    resource.cacheVoiceMp3(msgList);
+                    HTMLRender render = new HTMLRender(getBaseContext(), dbParser, resource, filePathResolver);
+                    render.prefetchAvatars(msgList);
+                    render.prefetchEmojis(msgList);
+                    render.prefetchImages(msgList);
+                    List<Map<String, Object>> dataList = new ArrayList<>();
+                    for (WeChatMsg chatMsg : msgList) {
+//                        if (!"190".equals(chatMsg.getMsgId())) {
+//                            continue;
+//                        }
+                        dataList.add(render.renderMessage(chatMsg));
+                    }
+                    // 渲染时未等待的头像，在输出前全部写完
+                    render.getAvatarRegistry().awaitPending();
+                } finally {
+                    // 持久化各类缓存（未命中记录、表情、语音、HTTP）
+                    resource.close();
                 }
                 Log.d(TAG, "转换完成");
             }
@@ -182,6 +201,96 @@ public class HomeActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * 对比语音转 MP3 与 Opus/Ogg 的编码耗时和体积
+     */
+    public void benchmarkVoiceFormats(View view) {
+        benchmarkExecutor.execute(this::runVoiceFormatBenchmark);
+    }
+
+    private void runVoiceFormatBenchmark() {
+        List<File> voiceFiles = new ArrayList<>();
+        collectFiles(new File(USER_ROOT, "voice2"), ".amr", voiceFiles, 50);
+        if (voiceFiles.isEmpty()) {
+            Log.w(TAG, "No voice files found for benchmark");
+            return;
+        }
+
+        AudioParserFFmpegKit transcoder = new AudioParserFFmpegKit(this);
+        File outDir = new File(getExternalCacheDir(), "voice_bench");
+        outDir.mkdirs();
+        for (String format : new String[]{AudioResult.FORMAT_MP3, AudioResult.FORMAT_OGG}) {
+            long elapsed = 0;
+            long totalBytes = 0;
+            int ok = 0;
+            for (File voice : voiceFiles) {
+                File out = new File(outDir, voice.getName() + "." + format);
+                long start = System.currentTimeMillis();
+                try {
+                    AudioResult result = transcoder.transcode(voice.getAbsolutePath(), out);
+                    elapsed += System.currentTimeMillis() - start;
+                    if (!result.mp3Url.isEmpty()) {
+                        ok++;
+                        totalBytes += out.length();
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "Benchmark failed on " + voice, e);
+                }
+                out.delete();
+            }
+            Log.i(TAG, String.format("语音编码 %s: %d/%d files, %d ms, %d bytes",
+                    format, ok, voiceFiles.size(), elapsed, totalBytes));
+        }
+    }
+
+    /**
+     * 统计解析 .bm 头像的单个耗时
+     */
+    public void benchmarkBmAvatars(View view) {
+        benchmarkExecutor.execute(this::runBmAvatarBenchmark);
+    }
+
+    private void runBmAvatarBenchmark() {
+        List<File> bmFiles = new ArrayList<>();
+        collectFiles(new File(USER_ROOT, "avatar"), ".bm", bmFiles, 200);
+        if (bmFiles.isEmpty()) {
+            Log.w(TAG, "No .bm avatars found for benchmark");
+            return;
+        }
+
+        AvatarReader reader = new AvatarReader(USER_ROOT, null);
+        int rounds = 5;
+        int decoded = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (File bm : bmFiles) {
+                if (reader.readBmFile(bm.getAbsolutePath()) != null) {
+                    decoded++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("头像解析 .bm: %d decodes, %.1f us/avatar",
+                decoded, elapsed / 1000.0 / (rounds * bmFiles.size())));
+    }
+
+    private static void collectFiles(File dir, String suffix, List<File> out, int limit) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (out.size() >= limit) {
+                return;
+            }
+            if (file.isDirectory()) {
+                collectFiles(file, suffix, out, limit);
+            } else if (file.getName().endsWith(suffix)) {
+                out.add(file);
+            }
+        }
+    }
+
     public static byte[] readBinary(Context context) throws IOException {
         InputStream inputStream = context.getResources().openRawResource(R.raw.test_wxgf); // R.raw.image refers to your image.jpg file
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
@@ -202,6 +311,12 @@ public class HomeActivity extends AppCompatActivity {
         outputStream.close();
     }
 
+    @Override
+    protected void onDestroy() {
+        benchmarkExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
     // 权限请求结果回调
     @Override
     public void onRequestPermissionsResult(int req, String[] perms, int[] results) {
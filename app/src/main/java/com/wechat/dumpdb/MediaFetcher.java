@@ -0,0 +1,478 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The one HTTP stack for avatar, emoji and video downloads.
+ * <p>
+ * All requests share a pooled OkHttp client and, once {@link #installCache} is called,
+ * its disk cache. Each host gets a bounded number of requests in flight, synchronous and
+ * async alike, and a token bucket of request starts; an answer served from the disk cache
+ * gives its token back. Failed connections and 429/5xx answers are retried with
+ * exponential backoff. Waiting for a slot, a token or a retry never holds a dispatcher
+ * thread or a connection: async starts are queued per host and scheduled, and only
+ * synchronous callers block, on their own thread and before their call starts.
+ */
+public class MediaFetcher {
+    private static final String TAG = "MediaFetcher";
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+    // Token bucket per host: sustained request rate and burst size
+    private static final double REQUESTS_PER_SECOND = 10;
+    private static final int BURST = 10;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 500;
+
+    private volatile OkHttpClient httpClient;
+    private final Map<String, HostLimiter> hosts = new ConcurrentHashMap<>();
+    // Delayed starts: token waits and retry backoff
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "media-fetch-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    public MediaFetcher() {
+        // OkHttp's own executor, with daemon threads; the dispatcher bounds how many are busy.
+        // Hosts are limited by HostLimiter, which also covers synchronous calls.
+        Dispatcher dispatcher = new Dispatcher(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new WorkerFactory()));
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS);
+        httpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES))
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Add an HTTP disk cache in {@code dir}. Only the first call has any effect.
+     */
+    public synchronized void installCache(File dir, long maxBytes) {
+        if (httpClient.cache() != null) {
+            return;
+        }
+        // newBuilder() keeps the connection pool and dispatcher
+        httpClient = httpClient.newBuilder().cache(new Cache(dir, maxBytes)).build();
+    }
+
+    /**
+     * The shared client, for callers that build their own calls to cancel them. Start those
+     * calls with {@link #enqueue} so they count against the host's limits.
+     */
+    public OkHttpClient getClient() {
+        return httpClient;
+    }
+
+    public byte[] fetchBytes(String url) throws IOException {
+        return execute(new Request.Builder().url(url).build(), response -> readBody(response, url));
+    }
+
+    /**
+     * Fetch {@code url} without blocking. The request waits in its host's queue while the
+     * host already has its maximum of requests in flight.
+     */
+    public CompletableFuture<byte[]> fetchBytesAsync(String url) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        Request request;
+        try {
+            request = new Request.Builder().url(url).build();
+        } catch (IllegalArgumentException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        enqueueWithRetries(request, 1, new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    future.complete(readBody(r, url));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Start {@code call} once its host has a free slot and a token, without retries. The slot
+     * is held until {@code callback} returns, so it may stream the body. A call cancelled
+     * while it waits fails as soon as its turn comes.
+     */
+    public void enqueue(Call call, Callback callback) {
+        HostLimiter limiter = limiterFor(call.request());
+        limiter.acquireAsync(() -> call.enqueue(new Callback() {
+            @Override
+            public void onResponse(Call c, Response response) {
+                try {
+                    recordAttempt(limiter, response);
+                    callback.onResponse(c, response);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error handling " + c.request().url(), e);
+                } finally {
+                    limiter.release();
+                }
+            }
+
+            @Override
+            public void onFailure(Call c, IOException e) {
+                try {
+                    requests.incrementAndGet();
+                    callback.onFailure(c, e);
+                } finally {
+                    limiter.release();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Run {@code request} and pass the response to {@code handler}, which may stream the body.
+     * The host's slot is held until the handler returns. Connection failures and 429/5xx
+     * responses are retried before the handler sees them, with the slot given up during the
+     * backoff; errors thrown by the handler are not retried, since it may already have
+     * consumed part of the body.
+     */
+    public <T> T execute(Request request, ResponseHandler<T> handler) throws IOException {
+        HostLimiter limiter = limiterFor(request);
+        for (int attempt = 1; ; attempt++) {
+            limiter.acquire();
+            try {
+                Response response;
+                try {
+                    response = httpClient.newCall(request).execute();
+                } catch (IOException e) {
+                    requests.incrementAndGet();
+                    if (!shouldRetry(e, attempt)) {
+                        failures.incrementAndGet();
+                        throw e;
+                    }
+                    Log.d(TAG, "Retrying " + request.url() + " after " + e.getMessage());
+                    response = null;
+                }
+                if (response != null) {
+                    try (Response r = response) {
+                        recordAttempt(limiter, r);
+                        if (!isRetryable(r.code()) || attempt >= MAX_ATTEMPTS) {
+                            if (!r.isSuccessful()) {
+                                failures.incrementAndGet();
+                            }
+                            return handler.handle(r);
+                        }
+                        Log.d(TAG, "Retrying " + request.url() + " after HTTP " + r.code());
+                    }
+                }
+            } finally {
+                limiter.release();
+            }
+            // The caller's own thread waits, holding no slot and no connection
+            try {
+                Thread.sleep(backoffDelay(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during backoff");
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code e}, possibly wrapped by a future, says the resource does not exist
+     * (HTTP 404 or 410), as opposed to a failure that may go away on a later run
+     */
+    public static boolean isNotFound(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof HttpStatusException && ((HttpStatusException) e).isNotFound();
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(requests.get(), retries.get(), failures.get(), cacheHits.get(), bytesFetched.get());
+    }
+
+    public void flush() {
+        Cache cache = httpClient.cache();
+        if (cache != null) {
+            try {
+                cache.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot flush HTTP cache: " + e.getMessage());
+            }
+        }
+        Log.i(TAG, getMetrics().toString());
+    }
+
+    /**
+     * {@link #enqueue} with the retries of {@link #execute}; the backoff is scheduled, so no
+     * thread or slot waits it out.
+     */
+    private void enqueueWithRetries(Request request, int attempt, Callback callback) {
+        enqueue(httpClient.newCall(request), new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                if (isRetryable(response.code()) && attempt < MAX_ATTEMPTS) {
+                    Log.d(TAG, "Retrying " + request.url() + " after HTTP " + response.code());
+                    response.close();
+                    retryLater(request, attempt, callback);
+                    return;
+                }
+                if (!response.isSuccessful()) {
+                    failures.incrementAndGet();
+                }
+                callback.onResponse(call, response);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (shouldRetry(e, attempt) && !call.isCanceled()) {
+                    Log.d(TAG, "Retrying " + request.url() + " after " + e.getMessage());
+                    retryLater(request, attempt, callback);
+                    return;
+                }
+                failures.incrementAndGet();
+                callback.onFailure(call, e);
+            }
+        });
+    }
+
+    private void retryLater(Request request, int attempt, Callback callback) {
+        scheduler.schedule(() -> enqueueWithRetries(request, attempt + 1, callback),
+                backoffDelay(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count a finished attempt: answers from the disk cache are hits and return their token.
+     */
+    private void recordAttempt(HostLimiter limiter, Response response) {
+        if (response.cacheResponse() != null && response.networkResponse() == null) {
+            cacheHits.incrementAndGet();
+            limiter.bucket.refund();
+        } else {
+            requests.incrementAndGet();
+        }
+    }
+
+    private HostLimiter limiterFor(Request request) {
+        return hosts.computeIfAbsent(request.url().host(), h -> new HostLimiter());
+    }
+
+    private byte[] readBody(Response response, String url) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(response.code(), url);
+        }
+        byte[] data = response.body().bytes();
+        bytesFetched.addAndGet(data.length);
+        return data;
+    }
+
+    private long backoffDelay(int attempt) {
+        retries.incrementAndGet();
+        long delay = BACKOFF_BASE_MS << (attempt - 1);
+        return delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static boolean shouldRetry(IOException e, int attempt) {
+        return attempt < MAX_ATTEMPTS && !(e instanceof InterruptedIOException);
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    /**
+     * Slots and token bucket of one host, shared by synchronous and async calls. A freed slot
+     * passes straight to the next waiting start.
+     */
+    private class HostLimiter {
+        final TokenBucket bucket = new TokenBucket(REQUESTS_PER_SECOND, BURST);
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int available = MAX_REQUESTS_PER_HOST;
+
+        /**
+         * Run {@code start} once a slot is free and a token is due, without blocking. It runs
+         * on the releasing or the scheduler thread, so it must only start a call.
+         */
+        void acquireAsync(Runnable start) {
+            synchronized (this) {
+                if (available == 0) {
+                    waiting.add(start);
+                    return;
+                }
+                available--;
+            }
+            startWhenTokenDue(start);
+        }
+
+        /**
+         * Take a slot for a synchronous call, waiting on the caller's thread.
+         */
+        void acquire() throws InterruptedIOException {
+            CompletableFuture<Void> granted = new CompletableFuture<>();
+            acquireAsync(() -> {
+                // The caller gave up waiting; pass the slot on
+                if (!granted.complete(null)) {
+                    release();
+                }
+            });
+            try {
+                granted.get();
+            } catch (InterruptedException e) {
+                if (!granted.cancel(false)) {
+                    release();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a request slot");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            startWhenTokenDue(next);
+        }
+
+        private void startWhenTokenDue(Runnable start) {
+            long wait = bucket.reserve();
+            if (wait > 0) {
+                scheduler.schedule(start, wait, TimeUnit.MILLISECONDS);
+            } else {
+                start.run();
+            }
+        }
+    }
+
+    private static class TokenBucket {
+        private final double ratePerMs;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(double perSecond, int burst) {
+            this.ratePerMs = perSecond / 1000;
+            this.capacity = burst;
+            this.tokens = burst;
+        }
+
+        /**
+         * Take a token, possibly one that is not there yet.
+         *
+         * @return ms until the token is due
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e6 * ratePerMs);
+            lastRefill = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerMs);
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+
+    /**
+     * A non-2xx answer, thrown by {@link #fetchBytes}.
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int code;
+
+        public HttpStatusException(int code, String url) {
+            super("HTTP " + code + " for " + url);
+            this.code = code;
+        }
+
+        public boolean isNotFound() {
+            return code == 404 || code == 410;
+        }
+    }
+
+    public static class Metrics {
+        public final long requests;
+        public final long retries;
+        public final long failures;
+        public final long cacheHits;
+        public final long bytesFetched;
+
+        Metrics(long requests, long retries, long failures, long cacheHits, long bytesFetched) {
+            this.requests = requests;
+            this.retries = retries;
+            this.failures = failures;
+            this.cacheHits = cacheHits;
+            this.bytesFetched = bytesFetched;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("MediaFetcher{requests=%d, retries=%d, failures=%d, cacheHits=%d, bytes=%d}",
+                    requests, retries, failures, cacheHits, bytesFetched);
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "media-fetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
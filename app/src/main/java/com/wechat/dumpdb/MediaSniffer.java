@@ -0,0 +1,278 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Classifies media files by their first bytes. File headers are read once and cached
+ * together with the file's size and mtime, so the several readers that look at the same
+ * file only open it once.
+ */
+public class MediaSniffer {
+    private static final String TAG = "MediaSniffer";
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_CACHED_HEADERS = 4096;
+    private static final byte[] WXGF_MAGIC = "wxgf".getBytes();
+    private static final byte[] SILK_MAGIC = "#!SILK_V3".getBytes();
+    private static final byte[] AMR_MAGIC = "#!AMR".getBytes();
+
+    private static final MediaSniffer INSTANCE = new MediaSniffer();
+
+    public enum Type {
+        JPEG("jpeg"),
+        PNG("png"),
+        GIF("gif"),
+        WEBP("webp"),
+        WXGF(null),
+        AMR(null),
+        SILK(null),
+        // Emoji file whose first 1KB is AES-encrypted with the account's emoji key
+        ENCRYPTED_EMOJI(null),
+        UNKNOWN(null);
+
+        /**
+         * Image format name as used in rendered output, or null for non-images.
+         */
+        public final String format;
+
+        Type(String format) {
+            this.format = format;
+        }
+
+        public boolean isImage() {
+            return format != null;
+        }
+    }
+
+    // Access-ordered so the least recently sniffed headers are dropped first
+    private final Map<String, Header> headers = new LinkedHashMap<String, Header>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Header> eldest) {
+            return size() > MAX_CACHED_HEADERS;
+        }
+    };
+
+    public static MediaSniffer getInstance() {
+        return INSTANCE;
+    }
+
+    public Type sniffFile(String path) {
+        return sniffFile(path, null);
+    }
+
+    /**
+     * @param emojiKey AES key of encrypted emojis, or null to not recognize them
+     */
+    public Type sniffFile(String path, byte[] emojiKey) {
+        byte[] header = readHeader(path);
+        if (header == null) {
+            return Type.UNKNOWN;
+        }
+        return sniff(header, emojiKey);
+    }
+
+    /**
+     * Like {@link #sniff(byte[])}, but also recognizes encrypted emojis, for content that
+     * has already been read.
+     *
+     * @param emojiKey AES key of encrypted emojis, or null to not recognize them
+     */
+    public static Type sniff(byte[] data, byte[] emojiKey) {
+        Type type = sniff(data);
+        if (type == Type.UNKNOWN && emojiKey != null && data != null && data.length >= HEADER_SIZE) {
+            byte[] header = data.length == HEADER_SIZE ? data : Arrays.copyOf(data, HEADER_SIZE);
+            Type plain = sniff(decryptBlock(header, emojiKey));
+            if (plain.isImage() || plain == Type.WXGF) {
+                return Type.ENCRYPTED_EMOJI;
+            }
+        }
+        return type;
+    }
+
+    public static Type sniff(byte[] data) {
+        if (data == null || data.length < 4) {
+            return Type.UNKNOWN;
+        }
+        if (data[0] == (byte) 0xFF && data[1] == (byte) 0xD8) {
+            return Type.JPEG;
+        }
+        if (data[0] == (byte) 0x89 && data[1] == 0x50 && data[2] == 0x4E && data[3] == 0x47) {
+            return Type.PNG;
+        }
+        if (data[0] == 0x47 && data[1] == 0x49 && data[2] == 0x46) {
+            return Type.GIF;
+        }
+        if (data.length >= 12 && data[0] == 0x52 && data[1] == 0x49 && data[2] == 0x46 && data[3] == 0x46 &&
+                data[8] == 0x57 && data[9] == 0x45 && data[10] == 0x42 && data[11] == 0x50) {
+            return Type.WEBP;
+        }
+        if (startsWith(data, 0, WXGF_MAGIC)) {
+            return Type.WXGF;
+        }
+        // WeChat prepends a 0x02 byte to its SILK files
+        if (startsWith(data, 0, SILK_MAGIC) || startsWith(data, 1, SILK_MAGIC)) {
+            return Type.SILK;
+        }
+        if (startsWith(data, 0, AMR_MAGIC)) {
+            return Type.AMR;
+        }
+        return Type.UNKNOWN;
+    }
+
+    /**
+     * Image format of {@code data} ("jpeg", "png", "gif" or "webp"), or null.
+     */
+    public static String getImageFormat(byte[] data) {
+        return sniff(data).format;
+    }
+
+    /**
+     * Offset of the first frame in a SILK or AMR-NB voice stream, just past its magic
+     * (and the 0x02 byte WeChat may put before SILK's).
+     *
+     * @return the offset, or -1 if {@code data} is neither
+     */
+    public static int getVoiceFrameOffset(byte[] data) {
+        Type type = sniff(data);
+        if (type == Type.SILK) {
+            return (startsWith(data, 0, SILK_MAGIC) ? 0 : 1) + SILK_MAGIC.length;
+        }
+        // "#!AMR\n"; AMR-WB streams start with "#!AMR-WB\n" and use other frame sizes
+        if (type == Type.AMR && data.length > AMR_MAGIC.length && data[AMR_MAGIC.length] == '\n') {
+            return AMR_MAGIC.length + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Number of frames in GIF {@code data}, counting no further than {@code limit}.
+     *
+     * @return the frame count, or -1 if {@code data} is not a well-formed GIF up to that point
+     */
+    public static int countGifFrames(byte[] data, int limit) {
+        if (sniff(data) != Type.GIF || data.length < 13) {
+            return -1;
+        }
+        int pos = 13;
+        // Global color table
+        if ((data[10] & 0x80) != 0) {
+            pos += 3 << ((data[10] & 0x07) + 1);
+        }
+        int frames = 0;
+        while (frames < limit && pos < data.length) {
+            int block = data[pos] & 0xff;
+            if (block == 0x3B) {
+                // Trailer
+                return frames;
+            } else if (block == 0x21) {
+                // Extension: label, then sub-blocks
+                pos = skipSubBlocks(data, pos + 2);
+            } else if (block == 0x2C) {
+                // Image descriptor, optional local color table, LZW code size, then sub-blocks
+                if (pos + 10 > data.length) {
+                    return -1;
+                }
+                int flags = data[pos + 9] & 0xff;
+                pos += 10;
+                if ((flags & 0x80) != 0) {
+                    pos += 3 << ((flags & 0x07) + 1);
+                }
+                pos = skipSubBlocks(data, pos + 1);
+                frames++;
+            } else {
+                return -1;
+            }
+            if (pos < 0) {
+                return -1;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * @return the position after the sub-blocks starting at {@code pos}, or -1 if they are truncated
+     */
+    private static int skipSubBlocks(byte[] data, int pos) {
+        while (pos < data.length) {
+            int size = data[pos] & 0xff;
+            pos += size + 1;
+            if (size == 0) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] readHeader(String path) {
+        File file = new File(path);
+        long size = file.length();
+        long mtime = file.lastModified();
+        synchronized (headers) {
+            Header cached = headers.get(path);
+            if (cached != null && cached.size == size && cached.mtime == mtime) {
+                return cached.bytes;
+            }
+        }
+
+        byte[] bytes;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buf = new byte[HEADER_SIZE];
+            int len = 0;
+            int n;
+            while (len < buf.length && (n = fis.read(buf, len, buf.length - len)) != -1) {
+                len += n;
+            }
+            bytes = len == buf.length ? buf : Arrays.copyOf(buf, len);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read header of " + path + ": " + e.getMessage());
+            return null;
+        }
+        synchronized (headers) {
+            headers.put(path, new Header(size, mtime, bytes));
+        }
+        return bytes;
+    }
+
+    private static byte[] decryptBlock(byte[] block, byte[] key) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+            return cipher.doFinal(block, 0, HEADER_SIZE);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (data.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Header {
+        final long size;
+        final long mtime;
+        final byte[] bytes;
+
+        Header(long size, long mtime, byte[] bytes) {
+            this.size = size;
+            this.mtime = mtime;
+            this.bytes = bytes;
+        }
+    }
+}
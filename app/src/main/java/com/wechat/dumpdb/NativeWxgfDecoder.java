@@ -0,0 +1,258 @@
+package com.wechat.dumpdb;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.tencent.mm.plugin.gif.MMWXGFJNI;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link WxgfDecoder} owning one handle of the native WxAM decoder. Pictures are decoded
+ * into a Bitmap that is reused while the dimensions stay the same, and stored as JPEG, or
+ * as PNG if they have transparent pixels. If the handle-based API rejects a picture, the
+ * stateless {@code nativeWxam2PicBuf}/{@code nativeWxamToGif} are used instead.
+ * <p>
+ * The handle-based path relies on a guessed JNI option layout, so handles are only trusted
+ * once {@link #checkLayout} has confirmed it. The stateless functions keep no per-caller
+ * state to run in parallel with, so calls to them are serialized across all decoders.
+ */
+public class NativeWxgfDecoder implements WxgfDecoder {
+    private static final String TAG = "NativeWxgfDecoder";
+    // The JNI library ships without headers, so the layout of the int arrays filled by
+    // nativeGetOption and nativeDecodeBufferFrame is inferred from the values they return:
+    // width, height and frame count, then codec details; the frame delay in ms first.
+    // checkLayout() confirms it against nativeWxam2PicBuf before the handle is trusted.
+    private static final int OPTION_COUNT = 6;
+    private static final int OPTION_WIDTH = 0;
+    private static final int OPTION_HEIGHT = 1;
+    private static final int OPTION_FRAME_COUNT = 2;
+    private static final int FRAME_INFO_COUNT = 4;
+    private static final int FRAME_INFO_DELAY = 0;
+    private static final int MAX_DIMENSION = 16384;
+    private static final int MAX_FRAMES = 10000;
+    private static final int MAX_FRAME_DELAY_MS = 60000;
+
+    private static final int DEFAULT_FRAME_DELAY_MS = 100;
+    private static final int JPEG_QUALITY = 90;
+
+    // Serializes the stateless functions
+    private static final Object STATELESS_LOCK = new Object();
+    // Whether the inferred layout matched the stateless decoder; null until checked once
+    private static Boolean layoutMatches;
+
+    private long handle;
+    private final int[] options = new int[OPTION_COUNT];
+    private final int[] frameInfo = new int[FRAME_INFO_COUNT];
+    private Bitmap frame;
+    private byte[] rgba;
+
+    public NativeWxgfDecoder() {
+        // Skip the handle once the layout is known not to match
+        if (Boolean.FALSE.equals(getLayoutMatches())) {
+            return;
+        }
+        handle = MMWXGFJNI.nativeInitWxAMDecoder();
+        if (handle == 0) {
+            Log.w(TAG, "nativeInitWxAMDecoder failed, using nativeWxam2PicBuf only");
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] data) throws Exception {
+        Bitmap bitmap = decodeFirstFrame(data);
+        if (bitmap == null) {
+            return statelessPic(data);
+        }
+        // Photos are embedded as JPEG as is; only stickers with transparency need PNG
+        boolean transparent = hasTransparency(bitmap);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!bitmap.compress(transparent ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                transparent ? 100 : JPEG_QUALITY, baos)) {
+            return statelessPic(data);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Stream the frames of an animated picture into the native GIF encoder one by one,
+     * through a single reused Bitmap and RGBA buffer, so memory use does not grow
+     * with the number of frames.
+     */
+    @Override
+    public byte[] decodeAnimated(byte[] data) throws Exception {
+        if (!usesHandle()) {
+            return statelessGif(data);
+        }
+        if (!readHeader(data) || options[OPTION_FRAME_COUNT] <= 1) {
+            return null;
+        }
+        int width = options[OPTION_WIDTH];
+        int height = options[OPTION_HEIGHT];
+        int frameCount = options[OPTION_FRAME_COUNT];
+        Bitmap bitmap = getFrame(width, height);
+        if (rgba == null || rgba.length != width * height * 4) {
+            rgba = new byte[width * height * 4];
+        }
+
+        long encoder = MMWXGFJNI.nativeInitGifEncode(width, height, 0);
+        if (encoder == 0) {
+            return statelessGif(data);
+        }
+        for (int i = 0; i < frameCount; i++) {
+            if (MMWXGFJNI.nativeDecodeBufferFrame(handle, data, data.length, bitmap, frameInfo) < 0) {
+                Log.w(TAG, "Failed to decode frame " + i + " of " + frameCount);
+                MMWXGFJNI.nativeFinishGifEncode(encoder);
+                return statelessGif(data);
+            }
+            bitmap.copyPixelsToBuffer(ByteBuffer.wrap(rgba));
+            int delayMs = frameInfo[FRAME_INFO_DELAY];
+            long delay = delayMs > 0 && delayMs <= MAX_FRAME_DELAY_MS ? delayMs : DEFAULT_FRAME_DELAY_MS;
+            MMWXGFJNI.nativeAddGifEncodeRgbaFrame(encoder, width, height, rgba, delay);
+        }
+        return MMWXGFJNI.nativeFinishGifEncode(encoder);
+    }
+
+    /**
+     * {@code nativeWxamToGif} wraps stills in a one-frame GIF; only real animations are kept.
+     */
+    private static byte[] statelessGif(byte[] data) {
+        byte[] gif;
+        synchronized (STATELESS_LOCK) {
+            gif = MMWXGFJNI.nativeWxamToGif(data);
+        }
+        return gif != null && MediaSniffer.countGifFrames(gif, 2) >= 2 ? gif : null;
+    }
+
+    private static byte[] statelessPic(byte[] data) {
+        synchronized (STATELESS_LOCK) {
+            return MMWXGFJNI.nativeWxam2PicBuf(data);
+        }
+    }
+
+    /**
+     * {@code nativeWxam2Pic} from file to file, serialized with the other stateless calls.
+     */
+    static int statelessPicFile(String inPath, String outPath) {
+        synchronized (STATELESS_LOCK) {
+            return MMWXGFJNI.nativeWxam2Pic(inPath, outPath);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (handle != 0) {
+            MMWXGFJNI.nativeUninit(handle);
+            handle = 0;
+        }
+        if (frame != null) {
+            frame.recycle();
+            frame = null;
+        }
+    }
+
+    private Bitmap decodeFirstFrame(byte[] data) {
+        if (!usesHandle() || !readHeader(data)) {
+            return null;
+        }
+        Bitmap bitmap = getFrame(options[OPTION_WIDTH], options[OPTION_HEIGHT]);
+        if (MMWXGFJNI.nativeDecodeBufferFrame(handle, data, data.length, bitmap, frameInfo) < 0) {
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Parse the header of {@code data} into {@link #options}, rewinding the handle first.
+     *
+     * @return false if the header cannot be read or holds implausible values
+     */
+    private boolean readHeader(byte[] data) {
+        MMWXGFJNI.nativeRewindBuffer(handle);
+        if (MMWXGFJNI.nativeDecodeBufferHeader(handle, data, data.length) < 0
+                || MMWXGFJNI.nativeGetOption(handle, data, data.length, options) < 0) {
+            return false;
+        }
+        int width = options[OPTION_WIDTH];
+        int height = options[OPTION_HEIGHT];
+        int frameCount = options[OPTION_FRAME_COUNT];
+        if (width <= 0 || width > MAX_DIMENSION || height <= 0 || height > MAX_DIMENSION
+                || frameCount <= 0 || frameCount > MAX_FRAMES) {
+            return false;
+        }
+        return checkLayout(data);
+    }
+
+    /**
+     * On the first readable header, confirm that the inferred option layout gives the
+     * dimensions {@code nativeWxam2PicBuf} produces for the same picture. If it does not,
+     * every decoder falls back to the stateless functions.
+     */
+    private boolean checkLayout(byte[] data) {
+        synchronized (NativeWxgfDecoder.class) {
+            if (layoutMatches == null) {
+                byte[] reference = statelessPic(data);
+                if (reference == null) {
+                    // Inconclusive, try again with the next picture
+                    return false;
+                }
+                BitmapFactory.Options bounds = new BitmapFactory.Options();
+                bounds.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(reference, 0, reference.length, bounds);
+                layoutMatches = bounds.outWidth == options[OPTION_WIDTH]
+                        && bounds.outHeight == options[OPTION_HEIGHT];
+                if (!layoutMatches) {
+                    Log.w(TAG, String.format("nativeGetOption reports %dx%d but the picture is %dx%d, "
+                                    + "not using decoder handles", options[OPTION_WIDTH], options[OPTION_HEIGHT],
+                            bounds.outWidth, bounds.outHeight));
+                }
+            }
+            return layoutMatches;
+        }
+    }
+
+    private static synchronized Boolean getLayoutMatches() {
+        return layoutMatches;
+    }
+
+    /**
+     * Whether to decode through the handle. Once the layout is known not to match, the
+     * handle is released so no further picture pays for a header parse before falling back.
+     */
+    private boolean usesHandle() {
+        if (handle != 0 && Boolean.FALSE.equals(getLayoutMatches())) {
+            MMWXGFJNI.nativeUninit(handle);
+            handle = 0;
+        }
+        return handle != 0;
+    }
+
+    /**
+     * Whether any pixel of {@code bitmap} is not fully opaque.
+     */
+    private boolean hasTransparency(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < bitmap.getHeight(); y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int pixel : row) {
+                if ((pixel >>> 24) != 0xff) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Bitmap getFrame(int width, int height) {
+        if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+            if (frame != null) {
+                frame.recycle();
+            }
+            frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return frame;
+    }
+}
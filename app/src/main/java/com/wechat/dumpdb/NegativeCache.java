@@ -0,0 +1,149 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Remembers resources that could not be found, so later lookups of the same emoji, avatar
+ * or image skip the directory scans, DB queries and downloads that already failed.
+ * <p>
+ * A miss expires after a TTL, or as soon as the directory the resource would live in is
+ * modified. Misses are persisted so they carry over to the next export.
+ */
+public class NegativeCache {
+    private static final String TAG = "NegativeCache";
+    public static final String TYPE_EMOJI = "emoji";
+    public static final String TYPE_AVATAR = "avatar";
+    public static final String TYPE_IMG = "img";
+
+    private final File file;
+    private final long ttlMs;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    public NegativeCache(File file, long ttlMs) {
+        this.file = file;
+        this.ttlMs = ttlMs;
+        load();
+    }
+
+    /**
+     * @param dir directory the resource would be found in, or null if it has none
+     * @return true if {@code id} is a known miss that is still valid
+     */
+    public synchronized boolean isMissing(String type, String id, File dir) {
+        if (id == null) {
+            return false;
+        }
+        String key = type + ":" + id;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (isExpired(entry) || entry.dirMtime != mtimeOf(dir)) {
+            entries.remove(key);
+            dirty = true;
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void record(String type, String id, String reason, File dir) {
+        if (id == null) {
+            return;
+        }
+        // Keep the reason on one tab-free line
+        String cleanReason = reason == null ? "" : reason.replaceAll("[\t\r\n]", " ");
+        entries.put(type + ":" + id, new Entry(System.currentTimeMillis(), mtimeOf(dir), cleanReason));
+        dirty = true;
+    }
+
+    /**
+     * Reason recorded for a known miss, or null.
+     */
+    public synchronized String getReason(String type, String id) {
+        Entry entry = entries.get(type + ":" + id);
+        return entry == null ? null : entry.reason;
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                if (isExpired(entry)) {
+                    continue;
+                }
+                writer.write(e.getKey() + "\t" + entry.time + "\t" + entry.dirMtime + "\t" + entry.reason);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving negative cache", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Error replacing negative cache " + file);
+            return;
+        }
+        dirty = false;
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) {
+                    continue;
+                }
+                entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading negative cache", e);
+            entries.clear();
+        }
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next())) {
+                it.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.time > ttlMs;
+    }
+
+    private static long mtimeOf(File dir) {
+        // 0 for a missing dir, so a dir that appears later invalidates the entry too
+        return dir == null ? 0 : dir.lastModified();
+    }
+
+    private static class Entry {
+        final long time;
+        final long dirMtime;
+        final String reason;
+
+        Entry(long time, long dirMtime, String reason) {
+            this.time = time;
+            this.dirMtime = dirMtime;
+            this.reason = reason;
+        }
+    }
+}
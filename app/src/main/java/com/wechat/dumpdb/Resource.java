@@ -6,26 +6,28 @@ import android.graphics.BitmapFactory;
 import android.util.Base64;
 import android.util.Log;
 
+import com.wechat.dumpdb.common.TextUtil;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 public class Resource {
     private static final String TAG = "Resource";
@@ -34,6 +36,18 @@ public class Resource {
     private static final String EMOJI_DIRNAME = "emoji";
     private static final String VIDEO_DIRNAME = "video";
     private static final int JPEG_QUALITY = 50;
+    private static final String AUDIO_CACHE_DIRNAME = "audio_cache";
+    private static final long AUDIO_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+    private static final int AVATAR_PREFETCH_THREADS = 4;
+    private static final String WXGF_CACHE_DIRNAME = "wxgf_cache";
+    private static final long WXGF_CACHE_MAX_BYTES = 512L * 1024 * 1024;
+    private static final String NEGATIVE_CACHE_FILENAME = "negative.cache";
+    private static final String EMOJI_CACHE_FILENAME = "emoji.cache";
+    private static final String HTTP_CACHE_DIRNAME = "http_cache";
+    private static final long HTTP_CACHE_MAX_BYTES = 128L * 1024 * 1024;
+    private static final long NEGATIVE_CACHE_TTL_MS = 24L * 60 * 60 * 1000;
+    private static final String EXPORT_DIR_PREFIX = "wechatdump_media_";
+    private static final String VIDEO_DOWNLOAD_DIRNAME = "video_download";
 
     private String resDir;
     private WeChatDBParser parser;
@@ -45,9 +59,15 @@ public class Resource {
     private AvatarReader avtReader;
     private WxgfAndroidDecoder wxgfDecoder;
     private EmojiReader emojiReader;
-    private ExecutorService executorService;
-    private OkHttpClient httpClient;
-    private AudioParserFFmpegKit audioParser;
+    private AudioTranscodePool transcodePool;
+    private ExecutorService avatarExecutor;
+    private Map<String, CompletableFuture<byte[]>> avatarCache;
+    private AudioCache audioCache;
+    private NegativeCache negativeCache;
+    private MediaFetcher mediaFetcher;
+    private WeChatCDNVideoDecoder videoDecoder;
+    private String voiceFormat = AudioResult.FORMAT_MP3;
+    private File exportDir;
     private Context androidContext; // Android context for audio parsing
 
     public Resource(WeChatDBParser parser, String resDir, String avtDb, Context context) {
@@ -66,16 +86,34 @@ public class Resource {
         this.voiceDir = resDir + File.separator + VOICE_DIRNAME;
         this.videoDir = resDir + File.separator + VIDEO_DIRNAME;
         this.avtReader = new AvatarReader(resDir, avtDb);
-        this.wxgfDecoder = new WxgfAndroidDecoder();
-        this.emojiReader = new EmojiReader(resDir, parser, wxgfDecoder, null);
-        this.executorService = Executors.newFixedThreadPool(3);
-        this.httpClient = new OkHttpClient();
-        this.audioParser = new AudioParserFFmpegKit(context);
+        this.wxgfDecoder = context == null ? new WxgfAndroidDecoder()
+                : new WxgfAndroidDecoder(new WxgfDecodeCache(
+                        new File(context.getExternalCacheDir(), WXGF_CACHE_DIRNAME), WXGF_CACHE_MAX_BYTES));
+        this.mediaFetcher = new MediaFetcher();
+        this.videoDecoder = new WeChatCDNVideoDecoder(mediaFetcher);
+        // Without a context there is no cache dir; emojis are then not cached across exports
+        this.emojiReader = new EmojiReader(resDir, parser, wxgfDecoder, mediaFetcher, context == null ? null
+                : new File(context.getExternalCacheDir(), EMOJI_CACHE_FILENAME).getPath());
+        this.transcodePool = new AudioTranscodePool(new AudioParserFFmpegKit(context));
+        this.avatarExecutor = Executors.newFixedThreadPool(AVATAR_PREFETCH_THREADS);
+        this.avatarCache = new ConcurrentHashMap<>();
+        if (context != null) {
+            this.audioCache = new AudioCache(new File(context.getExternalCacheDir(), AUDIO_CACHE_DIRNAME),
+                    AUDIO_CACHE_MAX_BYTES);
+            this.negativeCache = new NegativeCache(new File(context.getExternalCacheDir(), NEGATIVE_CACHE_FILENAME),
+                    NEGATIVE_CACHE_TTL_MS);
+            this.emojiReader.setNegativeCache(negativeCache);
+            mediaFetcher.installCache(new File(context.getExternalCacheDir(), HTTP_CACHE_DIRNAME),
+                    HTTP_CACHE_MAX_BYTES);
+        }
 
         // Register shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if (executorService != null) {
-                executorService.shutdown();
+            if (transcodePool != null) {
+                transcodePool.shutdown();
+            }
+            if (avatarExecutor != null) {
+                avatarExecutor.shutdown();
             }
         }));
     }
@@ -103,20 +141,72 @@ public class Resource {
         return ret;
     }
 
+    /**
+     * Transcoded voice note of {@code imgPath}, as a file in this export's media dir.
+     */
     public AudioResult getVoiceMp3(String imgPath) {
         Integer idx = voiceCacheIdx.get(imgPath);
         if (idx == null) {
-            return parseWechatAudioFile(getVoiceFilename(imgPath));
+            return exportVoice(parseWechatAudioFile(getVoiceFilename(imgPath)));
         }
 
         try {
-            return voiceCache.get(idx).get();
+            return exportVoice(voiceCache.get(idx).get());
         } catch (Exception e) {
             Log.e(TAG, "Error getting cached voice", e);
             return new AudioResult("", 0L);
         }
     }
 
+    /**
+     * Link or copy a transcoded file out of the audio cache into the media dir, so a later
+     * export evicting it does not break this export's players.
+     */
+    private AudioResult exportVoice(AudioResult result) {
+        if (result == null || result.mp3Url == null || result.mp3Url.isEmpty()) {
+            return result;
+        }
+        File source = new File(result.mp3Url);
+        try {
+            File dir = getExportDir();
+            if (dir.equals(source.getParentFile())) {
+                return result;
+            }
+            File target = new File(dir, source.getName());
+            if (!target.exists()) {
+                try {
+                    Files.createLink(target.toPath(), source.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    // External storage usually has no hard links
+                    Files.copy(source.toPath(), target.toPath());
+                }
+            }
+            return new AudioResult(target.getPath(), result.duration, result.format);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot export voice file " + source, e);
+            return new AudioResult("", result.duration, result.format);
+        }
+    }
+
+    /**
+     * Output format of transcoded voice notes, {@link AudioResult#FORMAT_MP3} or the cheaper
+     * and smaller {@link AudioResult#FORMAT_OGG} (Opus).
+     */
+    public void setVoiceFormat(String voiceFormat) {
+        this.voiceFormat = voiceFormat;
+    }
+
+    /**
+     * Voice length in ms from the SILK/AMR frame headers, without transcoding.
+     */
+    public long getVoiceDuration(String imgPath) {
+        String filename = getVoiceFilename(imgPath);
+        if (filename.isEmpty()) {
+            return 0L;
+        }
+        return Math.max(0L, VoiceDuration.readDurationMs(filename));
+    }
+
     public void cacheVoiceMp3(List<WeChatMsg> msgs) {
         List<String> voicePaths = new ArrayList<>();
         for (WeChatMsg msg : msgs) {
@@ -133,19 +223,70 @@ public class Resource {
         voiceCache = new ArrayList<>();
         for (String voicePath : voicePaths) {
             String filename = getVoiceFilename(voicePath);
-            Future<AudioResult> future = executorService.submit(() -> parseWechatAudioFile(filename));
-            voiceCache.add(future);
+            String cacheKey = audioCache != null ? AudioCache.keyFor(filename, voiceFormat) : null;
+            AudioResult cached = cacheKey != null ? audioCache.get(cacheKey) : null;
+            if (cached != null) {
+                voiceCache.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            voiceCache.add(scheduleTranscode(filename, cacheKey));
         }
     }
 
     public String getAvatar(String username) {
+        byte[] jpegBytes = getAvatarJpeg(username);
+        if (jpegBytes == null) {
+            return "";
+        }
+        return Base64.encodeToString(jpegBytes, Base64.NO_WRAP);
+    }
+
+    /**
+     * Resolve the avatars of {@code usernames} in the background, so that later lookups
+     * are served from memory instead of hitting the avatar dir, SFS blocks or network.
+     */
+    public void prefetchAvatars(Collection<String> usernames) {
+        for (String username : usernames) {
+            if (username != null && !username.isEmpty()) {
+                getAvatarJpegAsync(username);
+            }
+        }
+    }
+
+    /**
+     * Avatar of {@code username} as JPEG bytes, or null if it cannot be found.
+     * Waits for the avatar to be resolved; see {@link #getAvatarJpegAsync} for a non-blocking lookup.
+     */
+    public byte[] getAvatarJpeg(String username) {
+        return getAvatarJpegAsync(username).join();
+    }
+
+    /**
+     * Avatar of {@code username} as JPEG bytes, completing with null if it cannot be found.
+     * The first request for a username starts resolving it on the avatar pool.
+     */
+    public CompletableFuture<byte[]> getAvatarJpegAsync(String username) {
+        return avatarCache.computeIfAbsent(username, u -> CompletableFuture
+                .supplyAsync(() -> loadAvatarJpeg(u), avatarExecutor)
+                .exceptionally(e -> {
+                    Log.e(TAG, "Error resolving avatar of " + u, e);
+                    return null;
+                }));
+    }
+
+    private byte[] loadAvatarJpeg(String username) {
+        File avatarDir = avtReader.getAvatarDirFor(username);
+        if (isKnownMiss(NegativeCache.TYPE_AVATAR, username, avatarDir)) {
+            return null;
+        }
         Bitmap im = avtReader.getAvatar(username);
 
         if (im == null) {
             // Try downloading the avatar directly
             String avatarUrl = parser.getAvatarUrls().get(username);
             if (avatarUrl == null) {
-                return "";
+                recordMiss(NegativeCache.TYPE_AVATAR, username, "no local avatar or url", avatarDir);
+                return null;
             }
 
             Log.i(TAG, "Requesting avatar of " + username + " from " + avatarUrl + " ...");
@@ -157,29 +298,38 @@ public class Resource {
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Failed to fetch avatar of " + username, e);
-                return "";
+                // Timeouts and server errors may clear up, so only a missing avatar is remembered
+                if (MediaFetcher.isNotFound(e)) {
+                    recordMiss(NegativeCache.TYPE_AVATAR, username, "download failed: " + e.getMessage(), avatarDir);
+                }
+                return null;
             }
 
             // Save to cache
             avtReader.saveAvatarToAvtDir(username, im);
         }
 
-        // Convert to JPEG and encode to base64
+        // Convert to JPEG
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            im.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos);
-        } catch (Exception e) {
-            try {
-                // Sometimes it works the second time...
-                im.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos);
-            } catch (Exception e2) {
-                Log.e(TAG, "Failed to compress image to JPEG", e2);
-                return "";
+            if (!im.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos)) {
+                throw new Exception("Bitmap.compress returned false");
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to compress avatar of " + username + " to JPEG", e);
+            return null;
         }
+        return baos.toByteArray();
+    }
 
-        byte[] jpegBytes = baos.toByteArray();
-        return Base64.encodeToString(jpegBytes, Base64.NO_WRAP);
+    private boolean isKnownMiss(String type, String id, File dir) {
+        return negativeCache != null && negativeCache.isMissing(type, id, dir);
+    }
+
+    private void recordMiss(String type, String id, String reason, File dir) {
+        if (negativeCache != null) {
+            negativeCache.record(type, id, reason, dir);
+        }
     }
 
     private ImageFiles getImgFile(List<String> fnames) {
@@ -255,19 +405,45 @@ public class Resource {
         if (filteredFnames.isEmpty()) {
             return null;
         }
+        String imgId = filteredFnames.get(0);
+        File imgSubdir = imgId.length() < 4 ? null
+                : new File(imgDir + File.separator + imgId.substring(0, 2) + File.separator + imgId.substring(2, 4));
+        if (isKnownMiss(NegativeCache.TYPE_IMG, imgId, imgSubdir)) {
+            return null;
+        }
         ImageFiles imageFiles = getImgFile(filteredFnames);
-        String result = getJpgB64(imageFiles.big);
-        if (result == null) {
-            result = getJpgB64(imageFiles.small);
+        String largeImage = getLargeWxgfImg(imageFiles.big);
+        if (largeImage != null) {
+            return largeImage;
+        }
+        String result = null;
+        // A read or decode that threw may work next time, so it is not remembered as a miss
+        boolean failed = false;
+        for (String file : new String[]{imageFiles.big, imageFiles.small}) {
+            try {
+                result = getJpgB64(file);
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing image file: " + file, e);
+                failed = true;
+            }
+            if (result != null) {
+                break;
+            }
         }
         if (result == null) {
+            if (!failed) {
+                boolean found = !imageFiles.big.isEmpty() || !imageFiles.small.isEmpty();
+                recordMiss(NegativeCache.TYPE_IMG, imgId, found ? "cannot decode image" : "no image file", imgSubdir);
+            }
             return null;
         }
-        File tempDir = createTempDirectory();
-        if (tempDir == null) {
+        File imageFile;
+        try {
+            imageFile = newExportFile("img_", ".jpg");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot create image file for " + imgId, e);
             return null;
         }
-        String imageFile = tempDir + ".jpg";
         try {
             // 使用Android的Base64类解码
             byte[] imageBytes = Base64.decode(result, Base64.DEFAULT);
@@ -284,75 +460,131 @@ public class Resource {
             Log.e("ImageSave", "文件写入失败: " + e.getMessage());
             return null;
         }
-        return imageFile;
+        return imageFile.getPath();
     }
 
-    private File createTempDirectory() {
-        File tempDir = new File(androidContext.getExternalCacheDir(), "wechatdump_img_" + System.currentTimeMillis());
-        if (!tempDir.mkdirs()) {
-            return null;
+    /**
+     * Start decoding the WXGF pictures among {@code imageFnames} (one candidate list per
+     * image, as passed to {@link #getImg}) in parallel, ahead of rendering.
+     */
+    public void prefetchImages(Collection<List<String>> imageFnames) {
+        for (List<String> fnames : imageFnames) {
+            List<String> filteredFnames = new ArrayList<>();
+            for (String fname : fnames) {
+                if (fname != null && fname.length() >= 4) {
+                    filteredFnames.add(fname);
+                }
+            }
+            if (filteredFnames.isEmpty()) {
+                continue;
+            }
+            ImageFiles imageFiles = getImgFile(filteredFnames);
+            String imgFile = !imageFiles.big.isEmpty() ? imageFiles.big : imageFiles.small;
+            if (!imgFile.isEmpty()) {
+                wxgfDecoder.prefetch(imgFile);
+            }
         }
-        return tempDir;
     }
 
-    private String getJpgB64(String imgFile) {
-        if (imgFile == null || imgFile.isEmpty()) {
+    /**
+     * Decode a large WXGF picture file to file and stream it into a new image file, so neither
+     * the picture nor its base64 passes through the heap.
+     *
+     * @return the image file, or null if {@code imgFile} is not a large WXGF file or cannot be decoded
+     */
+    private String getLargeWxgfImg(String imgFile) {
+        if (imgFile == null || imgFile.isEmpty() || !wxgfDecoder.isLargeFile(imgFile)
+                || !WxgfAndroidDecoder.isWxgfFile(imgFile)) {
             return null;
         }
-
         try {
-            // True jpeg. Simplest case.
-            if (imgFile.endsWith("jpg") && getImageFormat(imgFile).equals("jpeg")) {
-                return getFileB64(imgFile);
-            }
-
-            byte[] buf;
-            if (WxgfAndroidDecoder.isWxgfFile(imgFile)) {
-                long start = System.currentTimeMillis();
-                buf = wxgfDecoder.decodeWithCache(imgFile, null);
-                if (buf == null) {
+            return wxgfDecoder.withDecodedFile(imgFile, decoded -> {
+                File imageFile = newExportFile("img_", ".jpg");
+                if (MediaSniffer.getInstance().sniffFile(decoded.getPath()) == MediaSniffer.Type.JPEG) {
+                    Files.copy(decoded.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return imageFile.getPath();
+                }
+                Bitmap bitmap = BitmapFactory.decodeFile(decoded.getPath());
+                if (bitmap == null) {
                     return null;
-                } else {
-                    long elapsed = System.currentTimeMillis() - start;
-                    if (elapsed > 10) {
-                        Log.i(TAG, String.format("Decoded %s in %.2f seconds", imgFile, elapsed / 1000.0));
-                    }
                 }
-            } else {
-                buf = Files.readAllBytes(Paths.get(imgFile));
-            }
+                try (FileOutputStream fos = new FileOutputStream(imageFile)) {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, fos);
+                } finally {
+                    bitmap.recycle();
+                }
+                return imageFile.getPath();
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error decoding large wxgf file: " + imgFile, e);
+            return null;
+        }
+    }
 
-            // File is not actually jpeg. Convert.
-            String format = detectImageFormat(buf);
-            if (!"jpeg".equals(format)) {
-                try {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(buf, 0, buf.length);
-                    if (bitmap == null) {
-                        return null;
-                    }
+    /**
+     * @return the picture as base64 JPEG, or null if there is no file or a decoder rejected it
+     * @throws Exception if the file could not be read or converted
+     */
+    private String getJpgB64(String imgFile) throws Exception {
+        if (imgFile == null || imgFile.isEmpty()) {
+            return null;
+        }
 
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos);
-                    buf = baos.toByteArray();
-                } catch (Exception e) {
-                    Log.e(TAG, "Error converting image to JPEG", e);
-                    return null;
+        MediaSniffer.Type type = MediaSniffer.getInstance().sniffFile(imgFile);
+        // True jpeg. Simplest case.
+        if (imgFile.endsWith("jpg") && type == MediaSniffer.Type.JPEG) {
+            return getFileB64(imgFile);
+        }
+
+        byte[] buf;
+        if (type == MediaSniffer.Type.WXGF) {
+            long start = System.currentTimeMillis();
+            buf = wxgfDecoder.decodeWithCache(imgFile, null);
+            if (buf == null) {
+                return null;
+            } else {
+                long elapsed = System.currentTimeMillis() - start;
+                if (elapsed > 10) {
+                    Log.i(TAG, String.format("Decoded %s in %.2f seconds", imgFile, elapsed / 1000.0));
                 }
             }
+        } else {
+            buf = Files.readAllBytes(Paths.get(imgFile));
+        }
 
-            return Base64.encodeToString(buf, Base64.NO_WRAP);
+        // File is not actually jpeg. Convert.
+        if (MediaSniffer.sniff(buf) != MediaSniffer.Type.JPEG) {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(buf, 0, buf.length);
+            if (bitmap == null) {
+                return null;
+            }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing image file: " + imgFile, e);
-            return null;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, baos);
+            buf = baos.toByteArray();
         }
+
+        return Base64.encodeToString(buf, Base64.NO_WRAP);
     }
 
     public EmojiReader.EmojiResult getEmojiByMd5(String md5) {
         return emojiReader.getEmoji(md5);
     }
 
-    public String getVideo(String videoId) {
+    /**
+     * Start downloading the emojis in {@code md5s} that have to come from the network.
+     */
+    public void prefetchEmojis(Collection<String> md5s) {
+        emojiReader.prefetch(md5s);
+    }
+
+    /**
+     * Local path of a video, downloading it from the CDN when it is not on disk. Falls back to
+     * the local thumbnail, then to the CDN URL if the download failed.
+     *
+     * @param reserved the message's reserved XML carrying the CDN info, may be null
+     */
+    public String getVideo(String videoId, String reserved) {
         String videoFile = videoDir + File.separator + videoId + ".mp4";
         String videoThumbnailFile = videoDir + File.separator + videoId + ".jpg";
 
@@ -361,26 +593,43 @@ public class Resource {
 
         if (video.exists()) {
             return videoFile;
-        } else if (thumbnail.exists()) {
+        }
+        String downloadUrl = null;
+        WeChatCDNVideoDecoder.WeChatVideoInfo videoInfo = WeChatCDNVideoDecoder.parseReservedContent(reserved);
+        if (videoInfo != null) {
+            File downloaded = new File(getVideoDownloadDir(), new File(videoId).getName() + ".mp4");
+            if (downloaded.exists()) {
+                return downloaded.getPath();
+            }
+            downloadUrl = videoDecoder.resolveCdnDownloadUrl(videoInfo.cdnVideoUrl, videoInfo.aesKey,
+                    WeChatCDNVideoDecoder.MEDIA_VIDEO);
+            // Resumes from an earlier export's .part file if one was interrupted
+            if (downloadUrl != null && videoDecoder.downloadAndDecryptVideo(videoInfo, downloadUrl, downloaded, null)) {
+                return downloaded.getPath();
+            }
+        }
+        if (thumbnail.exists()) {
             return videoThumbnailFile;
         }
-        return null;
+        return downloadUrl;
+    }
+
+    /**
+     * Downloaded videos are kept across exports, since exported pages link to them.
+     */
+    private File getVideoDownloadDir() {
+        File base = androidContext != null ? androidContext.getExternalCacheDir()
+                : new File(System.getProperty("java.io.tmpdir"));
+        File dir = new File(base, VIDEO_DOWNLOAD_DIRNAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create " + dir);
+        }
+        return dir;
     }
 
     // Helper methods
     private String getMd5Hex(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] hash = md.digest(input.getBytes("ASCII"));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (Exception e) {
-            Log.e(TAG, "Error computing MD5", e);
-            return input;
-        }
+        return TextUtil.md5(input.getBytes(StandardCharsets.US_ASCII));
     }
 
     private String getFileB64(String filename) throws IOException {
@@ -388,92 +637,112 @@ public class Resource {
         return Base64.encodeToString(data, Base64.NO_WRAP);
     }
 
-    private String getImageFormat(String filename) {
-        try {
-            byte[] header = new byte[12];
-            try (FileInputStream fis = new FileInputStream(filename)) {
-                fis.read(header);
-            }
-            return detectImageFormat(header);
-        } catch (Exception e) {
-            return "unknown";
-        }
+    private byte[] downloadUrl(String urlString) throws Exception {
+        return mediaFetcher.fetchBytes(urlString);
     }
 
-    private String detectImageFormat(byte[] header) {
-        if (header.length >= 4) {
-            // JPEG
-            if (header[0] == (byte) 0xFF && header[1] == (byte) 0xD8) {
-                return "jpeg";
-            }
-            // PNG
-            if (header[0] == (byte) 0x89 && header[1] == 0x50 && header[2] == 0x4E && header[3] == 0x47) {
-                return "png";
-            }
-            // GIF
-            if (header[0] == 0x47 && header[1] == 0x49 && header[2] == 0x46) {
-                return "gif";
-            }
-            // WebP
-            if (header.length >= 12 && header[0] == 0x52 && header[1] == 0x49 && header[2] == 0x46 && header[3] == 0x46 &&
-                    header[8] == 0x57 && header[9] == 0x45 && header[10] == 0x42 && header[11] == 0x50) {
-                return "webp";
-            }
+    private AudioResult parseWechatAudioFile(String filename) {
+        if (filename == null || filename.isEmpty()) {
+            return new AudioResult("", 0L);
         }
-        return "unknown";
+        String cacheKey = audioCache != null ? AudioCache.keyFor(filename, voiceFormat) : null;
+        AudioResult cached = cacheKey != null ? audioCache.get(cacheKey) : null;
+        if (cached != null) {
+            return cached;
+        }
+        return transcodeAndCache(filename, cacheKey);
     }
 
-    private byte[] downloadUrl(String urlString) throws Exception {
-        Request request = new Request.Builder()
-                .url(urlString)
-                .build();
+    private AudioResult transcodeAndCache(String filename, String cacheKey) {
+        File tmp = newAudioCacheTempFile(cacheKey);
+        if (tmp == null) {
+            return transcodePool.transcode(filename, exportVoiceFile(filename));
+        }
+        // Encode into the cache dir, then rename into place once the output is complete
+        return audioCache.put(cacheKey, tmp, transcodePool.transcode(filename, tmp));
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new Exception("HTTP error: " + response.code());
-            }
-            return response.body().bytes();
+    /**
+     * Destination when there is no audio cache, unique within this export's media dir;
+     * its extension selects the encoder, so voiceFormat applies here too.
+     *
+     * @return the file, or null to let the transcoder pick one
+     */
+    private File exportVoiceFile(String filename) {
+        try {
+            return newExportFile(new File(filename).getName() + "_", "." + voiceFormat);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot create voice file for " + filename, e);
+            return null;
         }
     }
 
-    // Implement audio file parsing using AudioParser
-    private AudioResult parseWechatAudioFile(String filename) {
-        if (filename == null || filename.isEmpty()) {
-            return new AudioResult("", 0L);
+    /**
+     * A new, uniquely named file in this export's media dir. The exported pages link to
+     * these files, so the media dir is kept after {@link #close}.
+     */
+    private File newExportFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, getExportDir());
+    }
+
+    private synchronized File getExportDir() throws IOException {
+        if (exportDir == null) {
+            File base = androidContext != null ? androidContext.getExternalCacheDir()
+                    : new File(System.getProperty("java.io.tmpdir"));
+            exportDir = Files.createTempDirectory(base.toPath(), EXPORT_DIR_PREFIX).toFile();
         }
+        return exportDir;
+    }
 
-        // Initialize audio parser if not already done
-        if (audioParser == null) {
-            // Note: You need to pass Android Context to Resource constructor
-            // and store it as a field to use here
-            if (androidContext == null) {
-                Log.e(TAG, "Android Context not available for audio parsing");
-                return new AudioResult("", 0L);
-            }
-            audioParser = new AudioParserFFmpegKit(androidContext);
+    private Future<AudioResult> scheduleTranscode(String filename, String cacheKey) {
+        File tmp = newAudioCacheTempFile(cacheKey);
+        if (tmp == null) {
+            return transcodePool.submit(filename, exportVoiceFile(filename));
         }
+        return transcodePool.submit(filename, tmp)
+                .thenApply(result -> audioCache.put(cacheKey, tmp, result));
+    }
 
+    /**
+     * A private file in the audio cache to transcode {@code cacheKey} into, or null to go
+     * without the cache.
+     */
+    private File newAudioCacheTempFile(String cacheKey) {
+        if (audioCache == null || cacheKey == null) {
+            return null;
+        }
         try {
-            return audioParser.doParseWechatAudioFile(filename);
-        } catch (Exception e) {
-            Log.e(TAG, "Error parsing audio file: " + filename, e);
-            return new AudioResult("", 0L);
+            return audioCache.newTempFile(cacheKey);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot create audio cache file for " + cacheKey, e);
+            return null;
         }
     }
 
     public void close() {
-        if (executorService != null) {
-            executorService.shutdown();
+        if (transcodePool != null) {
+            transcodePool.shutdown();
+        }
+        if (avatarExecutor != null) {
+            avatarExecutor.shutdown();
         }
         if (avtReader != null) {
-            // avtReader.close() if needed
+            avtReader.close();
         }
         if (emojiReader != null) {
-            emojiReader.flushCache();
+            emojiReader.close();
+        }
+        if (audioCache != null) {
+            audioCache.flush();
+        }
+        if (negativeCache != null) {
+            negativeCache.save();
         }
-        if (audioParser != null) {
-            // audioParser.close()； if needed - clean up any resources
+        if (wxgfDecoder != null) {
+            wxgfDecoder.shutdown();
         }
+        videoDecoder.shutdown();
+        mediaFetcher.flush();
     }
 
     private static class FileSize {
@@ -0,0 +1,220 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import okhttp3.CacheControl;
+import okhttp3.Request;
+
+/**
+ * Downloads large CDN files as several concurrent HTTP ranges through {@link MediaFetcher}.
+ * Each range is written at its own offset of a preallocated file through a shared
+ * {@link FileChannel}. Encrypted payloads (AES/ECB) are split on 16-byte block boundaries,
+ * so every segment decrypts independently; only the last one carries the PKCS#5 padding.
+ */
+public class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Below this size a single stream is about as fast as several
+    public static final long MIN_SEGMENTED_BYTES = 4L * 1024 * 1024;
+
+    private final MediaFetcher mediaFetcher;
+    private final int segments;
+    private final ExecutorService executor;
+
+    public SegmentedDownloader(MediaFetcher mediaFetcher, int segments) {
+        this.mediaFetcher = mediaFetcher;
+        this.segments = Math.max(1, segments);
+        this.executor = Executors.newCachedThreadPool(new WorkerFactory());
+    }
+
+    /**
+     * Download {@code url} into {@code outFile}, decrypting with {@code aesKey} if it is not null.
+     *
+     * @return false if the server does not serve ranges or the download failed; the caller
+     * may then fall back to a single stream
+     */
+    public boolean download(String url, byte[] aesKey, File outFile,
+                            WeChatCDNVideoDecoder.ProgressListener listener) {
+        long total;
+        try {
+            total = probeLength(url);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot probe " + url + ": " + e.getMessage());
+            return false;
+        }
+        if (total <= 0 || (aesKey != null && total % AES_BLOCK_SIZE != 0)) {
+            Log.d(TAG, "No usable ranges for " + url + ", length " + total);
+            return false;
+        }
+
+        // Segment boundaries fall on AES block boundaries
+        long segmentSize = (total + segments - 1) / segments;
+        segmentSize = (segmentSize + AES_BLOCK_SIZE - 1) / AES_BLOCK_SIZE * AES_BLOCK_SIZE;
+
+        File partFile = new File(outFile.getPath() + ".part");
+        long start = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(total);
+
+            AtomicLong done = new AtomicLong();
+            List<Future<Long>> futures = new ArrayList<>();
+            for (long offset = 0; offset < total; offset += segmentSize) {
+                long from = offset;
+                long to = Math.min(offset + segmentSize, total);
+                boolean last = to == total;
+                futures.add(executor.submit(() ->
+                        fetchSegment(url, from, to, last, aesKey, channel, done, total, listener)));
+            }
+
+            long end = total;
+            try {
+                for (Future<Long> future : futures) {
+                    end = future.get();
+                }
+            } catch (Exception e) {
+                for (Future<Long> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+            // Drop the space reserved for the padding stripped from the last block
+            channel.truncate(end);
+        } catch (Exception e) {
+            Log.e(TAG, "Segmented download of " + url + " failed", e);
+            partFile.delete();
+            return false;
+        }
+
+        if (outFile.exists() && !outFile.delete()) {
+            Log.w(TAG, "Cannot replace " + outFile);
+            return false;
+        }
+        if (!partFile.renameTo(outFile)) {
+            Log.w(TAG, "Cannot rename " + partFile + " to " + outFile);
+            return false;
+        }
+        Log.i(TAG, String.format("Downloaded %d bytes in %d segments in %d ms", total,
+                (total + segmentSize - 1) / segmentSize, System.currentTimeMillis() - start));
+        return true;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return the full length of {@code url}, or -1 if the server does not honor ranges
+     */
+    private long probeLength(String url) throws IOException {
+        Request request = newRequest(url).header("Range", "bytes=0-0").build();
+        return mediaFetcher.execute(request, response -> {
+            String contentRange = response.header("Content-Range");
+            if (response.code() != 206 || contentRange == null) {
+                return -1L;
+            }
+            // bytes 0-0/<total>
+            String length = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+            return "*".equals(length) ? -1L : Long.parseLong(length);
+        });
+    }
+
+    /**
+     * Fetch bytes [{@code from}, {@code to}) and write them, decrypted, at the same offset.
+     *
+     * @return the file offset just past the last byte written
+     */
+    private long fetchSegment(String url, long from, long to, boolean last, byte[] aesKey, FileChannel channel,
+                              AtomicLong done, long total, WeChatCDNVideoDecoder.ProgressListener listener)
+            throws Exception {
+        // Only the last segment carries the PKCS#5 padding
+        Cipher cipher = aesKey == null ? null
+                : Cipher.getInstance(last ? "AES/ECB/PKCS5Padding" : "AES/ECB/NoPadding");
+        if (cipher != null) {
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+        }
+        Request request = newRequest(url).header("Range", "bytes=" + from + "-" + (to - 1)).build();
+        return mediaFetcher.execute(request, response -> {
+            if (response.code() != 206) {
+                throw new IOException("Range " + from + "-" + (to - 1) + " got HTTP " + response.code());
+            }
+            long position = from;
+            InputStream in = response.body().byteStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                byte[] out = cipher != null ? cipher.update(buffer, 0, bytesRead) : buffer;
+                int outLen = cipher != null ? (out == null ? 0 : out.length) : bytesRead;
+                position += write(channel, out, outLen, position);
+                long sum = done.addAndGet(bytesRead);
+                if (listener != null) {
+                    listener.onProgress(sum, total);
+                }
+            }
+            if (cipher != null) {
+                byte[] out;
+                try {
+                    out = cipher.doFinal();
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Cannot decrypt range " + from + "-" + (to - 1), e);
+                }
+                position += write(channel, out, out.length, position);
+            }
+            if (!last && position != to) {
+                throw new IOException("Range " + from + "-" + (to - 1) + " ended at " + position);
+            }
+            return position;
+        });
+    }
+
+    private static int write(FileChannel channel, byte[] data, int length, long position) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + buf.position());
+        }
+        return length;
+    }
+
+    private static Request.Builder newRequest(String url) {
+        return new Request.Builder()
+                .url(url)
+                .header("User-Agent", "MicroMessenger Client")
+                .header("Accept", "*/*")
+                // Ranges of large videos would only churn the HTTP cache
+                .cacheControl(new CacheControl.Builder().noStore().build());
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "segment-download-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader for WeChat SFS pack files ({@code sfs/<prefix>.block.NNNNN}).
+ * Each block file is memory-mapped once and entries are returned as zero-copy slices.
+ */
+public class SfsBlockStore {
+    private static final String TAG = "SfsBlockStore";
+    // Every entry is preceded by a 16 byte header and its NUL-terminated file name
+    private static final int ENTRY_HEADER_SIZE = 16;
+
+    private final String sfsDir;
+    private final String prefix;
+    private final Map<Long, ByteBuffer> blocks = new HashMap<>();
+
+    public SfsBlockStore(String sfsDir, String prefix) {
+        this.sfsDir = sfsDir;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Read-only view of an entry's payload, or null if it cannot be read.
+     */
+    public ByteBuffer slice(Entry entry) {
+        long fileIdx = entry.offset >> 32;
+        long startPos = entry.offset - (fileIdx << 32) + ENTRY_HEADER_SIZE + entry.fileName.length() + 1;
+
+        ByteBuffer block = getBlock(fileIdx);
+        if (block == null) {
+            return null;
+        }
+        if (startPos + entry.size > block.capacity()) {
+            Log.w(TAG, "Entry " + entry.fileName + " exceeds " + getBlockName(fileIdx));
+            return null;
+        }
+
+        ByteBuffer view = block.duplicate();
+        view.position((int) startPos);
+        view.limit((int) startPos + entry.size);
+        return view.slice();
+    }
+
+    public InputStream openStream(Entry entry) {
+        ByteBuffer buffer = slice(entry);
+        return buffer == null ? null : new ByteBufferInputStream(buffer);
+    }
+
+    public synchronized void close() {
+        // Mapped buffers are released by the GC once unreferenced
+        blocks.clear();
+    }
+
+    private synchronized ByteBuffer getBlock(long fileIdx) {
+        if (blocks.containsKey(fileIdx)) {
+            return blocks.get(fileIdx);
+        }
+
+        ByteBuffer block = null;
+        String fname = sfsDir + File.separator + getBlockName(fileIdx);
+        try (RandomAccessFile file = new RandomAccessFile(fname, "r");
+             FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Block file too large to map: " + channel.size());
+            }
+            block = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map " + fname + ": " + e.getMessage());
+        }
+        // Remember failures too, so a missing block isn't reopened for every entry
+        blocks.put(fileIdx, block);
+        return block;
+    }
+
+    private String getBlockName(long fileIdx) {
+        return prefix + ".block." + String.format("%05d", fileIdx);
+    }
+
+    public static class Entry {
+        public final String fileName;
+        public final long offset;
+        public final int size;
+
+        public Entry(String fileName, long offset, int size) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Computes the duration of WeChat SILK_V3 and AMR-NB voice files by walking their
+ * frame headers, without decoding any audio.
+ */
+public class VoiceDuration {
+    private static final String TAG = "VoiceDuration";
+    private static final int FRAME_MS = 20;
+    // AMR-NB payload size in bytes by frame type, excluding the 1-byte TOC
+    private static final int[] AMR_FRAME_SIZES = {12, 13, 15, 17, 19, 20, 26, 31, 5, 0, 0, 0, 0, 0, 0, 0};
+
+    /**
+     * @return duration in ms, or -1 if the file is not a recognizable SILK/AMR stream
+     */
+    public static long readDurationMs(String fileName) {
+        try {
+            return parseDurationMs(Files.readAllBytes(Paths.get(fileName)));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read voice file " + fileName, e);
+            return -1;
+        }
+    }
+
+    public static long parseDurationMs(byte[] data) {
+        int pos = MediaSniffer.getVoiceFrameOffset(data);
+        if (pos < 0) {
+            return -1;
+        }
+        if (MediaSniffer.sniff(data) == MediaSniffer.Type.SILK) {
+            return countSilkFrames(data, pos) * FRAME_MS;
+        }
+        return countAmrFrames(data, pos) * FRAME_MS;
+    }
+
+    private static long countSilkFrames(byte[] data, int pos) {
+        long frames = 0;
+        // Each frame is a little-endian 16-bit payload length followed by the payload
+        while (pos + 2 <= data.length) {
+            int len = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+            if (len == 0xFFFF || pos + 2 + len > data.length) {
+                break;
+            }
+            pos += 2 + len;
+            frames++;
+        }
+        return frames;
+    }
+
+    private static long countAmrFrames(byte[] data, int pos) {
+        long frames = 0;
+        while (pos < data.length) {
+            int frameType = (data[pos] >> 3) & 0x0F;
+            int next = pos + 1 + AMR_FRAME_SIZES[frameType];
+            if (next > data.length) {
+                break;
+            }
+            pos = next;
+            frames++;
+        }
+        return frames;
+    }
+}
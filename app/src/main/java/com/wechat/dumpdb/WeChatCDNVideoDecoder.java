@@ -2,25 +2,46 @@ package com.wechat.dumpdb;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.spec.SecretKeySpec;
 
+import okhttp3.CacheControl;
+import okhttp3.Request;
+
 /**
  * 微信CDN视频解码器
  * 解析 reserved 字段中的加密视频信息
  */
 public class WeChatCDNVideoDecoder {
     private static final String TAG = "CDNVideoDecoder";
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+
+    // 候选URL的媒体类型：视频和缩略图分别记住各自胜出的组合
+    public static final String MEDIA_VIDEO = "video";
+    public static final String MEDIA_THUMB = "thumb";
+
+    // 候选URL错开启动的间隔，以及整个竞速的超时
+    private static final long RACE_STAGGER_MS = 300;
+    private static final long RACE_TIMEOUT_MS = 15000;
 
     // 微信CDN服务器地址
     private static final String[] CDN_SERVERS = {
@@ -30,6 +51,42 @@ public class WeChatCDNVideoDecoder {
             "https://mpvideo.qpic.cn"
     };
 
+    // 微信视频下载URL的常见格式
+    private static final String[] URL_TEMPLATES = {
+            "%s/1007_%s.mp4",
+            "%s/110/20304/%s.mp4",
+            "%s/sz_mmbiz_mp4/%s/640",
+            "%s/mmvideo/%s.mp4"
+    };
+
+    // 所有下载都经由同一个 MediaFetcher（连接池、限流、重试）
+    private final MediaFetcher mediaFetcher;
+    // 大视频分段并发下载
+    private final SegmentedDownloader segmentedDownloader;
+    private final CdnUrlRacer urlRacer;
+
+    // 各媒体类型上次竞速胜出的 服务器 × 模板 组合下标，之后同类型的请求优先尝试它
+    private final Map<String, Integer> preferredCandidates = new ConcurrentHashMap<>();
+    // 各 媒体类型@服务器 上次胜出的模板下标，该服务器的候选中优先尝试它
+    private final Map<String, Integer> preferredTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * @param mediaFetcher 下载所用的 MediaFetcher，例如与 Resource 共用同一个，或在测试中指向本地服务器
+     */
+    public WeChatCDNVideoDecoder(MediaFetcher mediaFetcher) {
+        this.mediaFetcher = mediaFetcher;
+        this.segmentedDownloader = new SegmentedDownloader(mediaFetcher, DOWNLOAD_SEGMENTS);
+        this.urlRacer = new CdnUrlRacer(mediaFetcher, RACE_STAGGER_MS, RACE_TIMEOUT_MS);
+    }
+
+    /**
+     * 停止分段下载和URL竞速的线程，不关闭共用的 MediaFetcher
+     */
+    public void shutdown() {
+        segmentedDownloader.shutdown();
+        urlRacer.shutdown();
+    }
+
     /**
      * 解析reserved字段中的视频信息
      */
@@ -73,9 +130,67 @@ public class WeChatCDNVideoDecoder {
     }
 
     /**
-     * 从CDN URL数据构建实际的下载链接
+     * 对所有 服务器 × 模板 候选URL错开发起探测请求，返回最先有效响应的URL，并按媒体类型记住胜出的组合。
+     * 同类型上次胜出的组合排在最前，通常只需一个请求。
+     *
+     * @param mediaType {@link #MEDIA_VIDEO} 或 {@link #MEDIA_THUMB}
+     */
+    public String resolveCdnDownloadUrl(String cdnUrlData, String aesKey, String mediaType) {
+        CDNUrlInfo urlInfo = parseCdnUrlData(cdnUrlData);
+        if (urlInfo == null || urlInfo.uuid == null || urlInfo.uuid.isEmpty()) {
+            return null;
+        }
+
+        List<Integer> order = candidateOrder(mediaType);
+        List<String> urls = new ArrayList<>(order.size());
+        for (int candidate : order) {
+            urls.add(buildFinalDownloadUrl(urlInfo, aesKey, candidate));
+        }
+
+        int winner = urlRacer.race(urls);
+        if (winner < 0) {
+            Log.w(TAG, "No CDN candidate answered for " + urlInfo.uuid);
+            return null;
+        }
+        recordWinner(mediaType, order.get(winner));
+        Log.d(TAG, "Resolved download URL: " + urls.get(winner));
+        return urls.get(winner);
+    }
+
+    /**
+     * 竞速顺序：该类型上次胜出的组合，同一服务器的其他模板，再依次是其他服务器；
+     * 每个服务器内先试该类型在此服务器上胜出过的模板
      */
-    public static String buildCdnDownloadUrl(String cdnUrlData, String aesKey) {
+    List<Integer> candidateOrder(String mediaType) {
+        int templates = URL_TEMPLATES.length;
+        int preferred = preferredCandidates.getOrDefault(mediaType, 0);
+        int preferredServer = preferred / templates;
+        List<Integer> order = new ArrayList<>(CDN_SERVERS.length * templates);
+        order.add(preferred);
+        for (int i = 0; i < CDN_SERVERS.length; i++) {
+            // 先排胜出的服务器
+            int server = i == 0 ? preferredServer : (i <= preferredServer ? i - 1 : i);
+            Integer template = preferredTemplates.get(mediaType + "@" + CDN_SERVERS[server]);
+            if (template != null && !order.contains(server * templates + template)) {
+                order.add(server * templates + template);
+            }
+            for (int t = 0; t < templates; t++) {
+                int candidate = server * templates + t;
+                if (!order.contains(candidate)) {
+                    order.add(candidate);
+                }
+            }
+        }
+        return order;
+    }
+
+    void recordWinner(String mediaType, int candidate) {
+        int templates = URL_TEMPLATES.length;
+        preferredCandidates.put(mediaType, candidate);
+        preferredTemplates.put(mediaType + "@" + CDN_SERVERS[candidate / templates], candidate % templates);
+    }
+
+    private static CDNUrlInfo parseCdnUrlData(String cdnUrlData) {
         if (cdnUrlData == null || cdnUrlData.isEmpty()) {
             return null;
         }
@@ -90,14 +205,7 @@ public class WeChatCDNVideoDecoder {
             }
 
             // 解析CDN URL结构
-            CDNUrlInfo urlInfo = parseCdnUrlStructure(urlBytes);
-
-            if (urlInfo != null) {
-                // 构建最终的下载URL
-                String finalUrl = buildFinalDownloadUrl(urlInfo, aesKey);
-                Log.d(TAG, "Built download URL: " + finalUrl);
-                return finalUrl;
-            }
+            return parseCdnUrlStructure(urlBytes);
 
         } catch (Exception e) {
             Log.e(TAG, "Error building CDN download URL", e);
@@ -152,115 +260,214 @@ public class WeChatCDNVideoDecoder {
 
     /**
      * 构建最终的下载URL
+     *
+     * @param candidate 服务器 × 模板 组合下标，即 server * URL_TEMPLATES.length + template
      */
-    private static String buildFinalDownloadUrl(CDNUrlInfo urlInfo, String aesKey) {
+    private static String buildFinalDownloadUrl(CDNUrlInfo urlInfo, String aesKey, int candidate) {
         if (urlInfo.uuid == null || urlInfo.uuid.isEmpty()) {
             return null;
         }
 
-        // 微信视频下载URL的常见格式
-        String[] urlTemplates = {
-                "%s/1007_%s.mp4",
-                "%s/110/20304/%s.mp4",
-                "%s/sz_mmbiz_mp4/%s/640",
-                "%s/mmvideo/%s.mp4"
-        };
+        String server = CDN_SERVERS[candidate / URL_TEMPLATES.length];
+        String template = URL_TEMPLATES[candidate % URL_TEMPLATES.length];
+        String url = String.format(template, server, urlInfo.uuid);
 
-        // 尝试不同的CDN服务器和URL格式
-        for (String server : CDN_SERVERS) {
-            for (String template : urlTemplates) {
-                String url = String.format(template, server, urlInfo.uuid);
+        // 添加必要的参数
+        if (aesKey != null && !aesKey.isEmpty()) {
+            url += "?aeskey=" + aesKey;
+        }
+        return url;
+    }
 
-                // 添加必要的参数
-                if (aesKey != null && !aesKey.isEmpty()) {
-                    url += "?aeskey=" + aesKey;
-                }
+    /**
+     * 下载并解密视频到文件，边下载边解密，不在内存中保留整个视频
+     */
+    public boolean downloadAndDecryptVideo(WeChatVideoInfo videoInfo, File outFile, ProgressListener listener) {
+        String downloadUrl = resolveCdnDownloadUrl(videoInfo.cdnVideoUrl, videoInfo.aesKey, MEDIA_VIDEO);
 
-                Log.d(TAG, "Generated URL: " + url);
-                return url; // 返回第一个生成的URL用于测试
-            }
+        if (downloadUrl == null) {
+            Log.e(TAG, "Cannot resolve download URL");
+            return false;
         }
-
-        return null;
+        return downloadAndDecryptVideo(videoInfo, downloadUrl, outFile, listener);
     }
 
     /**
-     * 下载并解密视频内容
+     * 从已解析出的 {@code downloadUrl} 下载并解密视频到文件
      */
-    public static byte[] downloadAndDecryptVideo(WeChatVideoInfo videoInfo) {
-        String downloadUrl = buildCdnDownloadUrl(videoInfo.cdnVideoUrl, videoInfo.aesKey);
+    public boolean downloadAndDecryptVideo(WeChatVideoInfo videoInfo, String downloadUrl, File outFile,
+                                           ProgressListener listener) {
+        // 已有 .part 时走单连接续传；否则大文件先尝试分段下载，服务器不支持 Range 时退回单连接
+        boolean resuming = new File(outFile.getPath() + ".part").exists();
+        if (!resuming && videoInfo.length >= SegmentedDownloader.MIN_SEGMENTED_BYTES) {
+            byte[] aesKey = null;
+            if (videoInfo.aesKey != null && !videoInfo.aesKey.isEmpty()) {
+                aesKey = hexToBytes(videoInfo.aesKey);
+                if (aesKey == null || aesKey.length != 16) {
+                    Log.e(TAG, "Invalid AES key length");
+                    return false;
+                }
+            }
+            if (segmentedDownloader.download(downloadUrl, aesKey, outFile, listener)) {
+                return true;
+            }
+        }
+        return downloadToFile(downloadUrl, videoInfo.aesKey, outFile, listener);
+    }
 
-        if (downloadUrl == null) {
-            Log.e(TAG, "Cannot build download URL");
-            return null;
+    /**
+     * 将URL内容经 CipherInputStream 解密后直接写入文件（无AES密钥时原样写入）。
+     * 下载中断时保留 .part 文件，再次调用会用 HTTP Range 从断点续传。
+     */
+    public boolean downloadToFile(String urlString, String aesKeyHex, File outFile, ProgressListener listener) {
+        boolean encrypted = aesKeyHex != null && !aesKeyHex.isEmpty();
+        Cipher cipher = encrypted ? createCipher(aesKeyHex) : null;
+        if (encrypted && cipher == null) {
+            return false;
         }
 
-        try {
-            // 下载加密的视频数据
-            byte[] encryptedData = downloadFromUrl(downloadUrl);
+        File partFile = new File(outFile.getPath() + ".part");
+        // ECB 各块独立解密，已写出的明文总是整块，明文长度即可作为续传偏移
+        long partLength = partFile.length();
+        long offset = encrypted ? partLength - partLength % AES_BLOCK_SIZE : partLength;
 
-            if (encryptedData == null) {
-                Log.e(TAG, "Failed to download video data");
-                return null;
-            }
+        Request.Builder request = newRequest(urlString);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        try {
+            return mediaFetcher.execute(request.build(), response -> {
+                long start = offset;
+                int responseCode = response.code();
+                if (responseCode == HTTP_OK) {
+                    // 服务器不支持 Range，从头下载
+                    start = 0;
+                } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    // 续传偏移已到文件末尾：未加密时 .part 可能已完整（上次在改名前中断），
+                    // 按 Content-Range 中的总长判断；加密时明文总比密文短，.part 不会因完整而越界
+                    long total = parseUnsatisfiedRangeLength(response.header("Content-Range"));
+                    if (!encrypted && total >= 0 && partLength == total) {
+                        return finishPartFile(partFile, outFile);
+                    }
+                    Log.w(TAG, "Range not satisfiable, discarding " + partLength + " bytes of " + partFile);
+                    partFile.delete();
+                    return false;
+                } else if (responseCode != HTTP_PARTIAL) {
+                    Log.w(TAG, "HTTP response code: " + responseCode);
+                    return false;
+                }
+                long length = response.body().contentLength();
+                long total = length >= 0 ? start + length : -1;
 
-            // 解密视频数据
-            if (videoInfo.aesKey != null && !videoInfo.aesKey.isEmpty()) {
-                return decryptVideoData(encryptedData, videoInfo.aesKey);
-            } else {
-                return encryptedData; // 如果没有AES密钥，可能是未加密的
-            }
+                try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+                    raf.setLength(start);
+                }
 
+                InputStream in = response.body().byteStream();
+                if (cipher != null) {
+                    in = new CipherInputStream(in, cipher);
+                }
+                long done = start;
+                try (InputStream input = in;
+                     OutputStream output = new FileOutputStream(partFile, true)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while ((bytesRead = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, bytesRead);
+                        done += bytesRead;
+                        if (listener != null) {
+                            listener.onProgress(done, total);
+                        }
+                    }
+                }
+                return finishPartFile(partFile, outFile);
+            });
         } catch (Exception e) {
-            Log.e(TAG, "Error downloading and decrypting video", e);
-            return null;
+            Log.e(TAG, "Error downloading " + urlString + " to " + outFile + ", " + partFile.length()
+                    + " bytes kept for resume", e);
+            return false;
+        }
+    }
+
+    /**
+     * 用下载完成的 .part 文件替换 {@code outFile}
+     */
+    private static boolean finishPartFile(File partFile, File outFile) {
+        if (outFile.exists() && !outFile.delete()) {
+            Log.w(TAG, "Cannot replace " + outFile);
+            return false;
+        }
+        if (!partFile.renameTo(outFile)) {
+            Log.w(TAG, "Cannot rename " + partFile + " to " + outFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 解析 416 响应 Content-Range 中斜杠后的总长，无法解析时返回 -1
+     */
+    private static long parseUnsatisfiedRangeLength(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes */")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes */".length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     /**
      * 从URL下载数据
      */
-    private static byte[] downloadFromUrl(String urlString) {
+    private byte[] downloadFromUrl(String urlString) {
         try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // 设置微信相关的请求头
-            connection.setRequestProperty("User-Agent", "MicroMessenger Client");
-            connection.setRequestProperty("Accept", "*/*");
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(30000);
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                Log.w(TAG, "HTTP response code: " + responseCode);
-                return null;
-            }
+            return mediaFetcher.execute(newRequest(urlString).build(), response -> {
+                if (response.code() != HTTP_OK) {
+                    Log.w(TAG, "HTTP response code: " + response.code());
+                    return null;
+                }
+                return response.body().bytes();
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error downloading from URL: " + urlString, e);
+            return null;
+        }
+    }
 
-            InputStream inputStream = connection.getInputStream();
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    private static Request.Builder newRequest(String urlString) {
+        // 设置微信相关的请求头；视频体积大，不写入HTTP缓存
+        return new Request.Builder()
+                .url(urlString)
+                .header("User-Agent", "MicroMessenger Client")
+                .header("Accept", "*/*")
+                .cacheControl(new CacheControl.Builder().noStore().build());
+    }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+    /**
+     * 使用AES解密视频数据
+     */
+    private static byte[] decryptVideoData(byte[] encryptedData, String aesKeyHex) {
+        try {
+            Cipher cipher = createCipher(aesKeyHex);
+            if (cipher == null) {
+                return null;
             }
 
-            inputStream.close();
-            connection.disconnect();
-
-            return outputStream.toByteArray();
+            // 解密数据
+            return cipher.doFinal(encryptedData);
 
         } catch (Exception e) {
-            Log.e(TAG, "Error downloading from URL: " + urlString, e);
+            Log.e(TAG, "Error decrypting video data", e);
             return null;
         }
     }
 
     /**
-     * 使用AES解密视频数据
+     * 创建AES解密器，密钥无效时返回 null
      */
-    private static byte[] decryptVideoData(byte[] encryptedData, String aesKeyHex) {
+    private static Cipher createCipher(String aesKeyHex) {
         try {
             // 将十六进制AES密钥转换为字节数组
             byte[] aesKey = hexToBytes(aesKeyHex);
@@ -270,16 +477,13 @@ public class WeChatCDNVideoDecoder {
                 return null;
             }
 
-            // 创建AES解密器
             SecretKeySpec keySpec = new SecretKeySpec(aesKey, "AES");
             Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
             cipher.init(Cipher.DECRYPT_MODE, keySpec);
-
-            // 解密数据
-            return cipher.doFinal(encryptedData);
+            return cipher;
 
         } catch (Exception e) {
-            Log.e(TAG, "Error decrypting video data", e);
+            Log.e(TAG, "Error creating AES cipher", e);
             return null;
         }
     }
@@ -287,8 +491,8 @@ public class WeChatCDNVideoDecoder {
     /**
      * 获取视频缩略图
      */
-    public static byte[] getVideoThumbnail(WeChatVideoInfo videoInfo) {
-        String thumbUrl = buildCdnDownloadUrl(videoInfo.cdnThumbUrl, videoInfo.cdnThumbAesKey);
+    public byte[] getVideoThumbnail(WeChatVideoInfo videoInfo) {
+        String thumbUrl = resolveCdnDownloadUrl(videoInfo.cdnThumbUrl, videoInfo.cdnThumbAesKey, MEDIA_THUMB);
 
         if (thumbUrl == null) {
             return null;
@@ -370,6 +574,13 @@ public class WeChatCDNVideoDecoder {
 
     // 数据类
 
+    public interface ProgressListener {
+        /**
+         * @param totalBytes 总字节数，未知时为 -1
+         */
+        void onProgress(long bytesDone, long totalBytes);
+    }
+
     public static class WeChatVideoInfo {
         public String aesKey;
         public String cdnVideoUrl;
@@ -3,10 +3,13 @@ package com.wechat.dumpdb;
 import android.util.Log;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 微信 WxFileIndex.db 中 wcf:// 路径解析器
@@ -15,109 +18,19 @@ import java.util.regex.Pattern;
 public class WeChatFilePathResolver {
     private static final String TAG = "WeChatFileResolver";
 
+    private static final String WCF_SCHEME = "wcf://";
+
     // 基础目录路径
     private String basePath;
 
-    // wcf协议到实际路径的映射规则
-    private final Map<String, PathResolver> pathResolvers;
+    // 目录快照：目录路径 -> 目录下的名字及其是否为普通文件，每个目录只列举一次，之后的检查不再 stat
+    private final Map<String, Map<String, Boolean>> dirSnapshot = new ConcurrentHashMap<>();
+
+    // 已经警告过的未知协议，避免每条消息都打日志
+    private final Set<String> unknownProtocols = ConcurrentHashMap.newKeySet();
 
     public WeChatFilePathResolver(String basePath) {
         this.basePath = basePath;
-        this.pathResolvers = initializePathResolvers();
-    }
-
-    /**
-     * 初始化路径解析器
-     */
-    private Map<String, PathResolver> initializePathResolvers() {
-        Map<String, PathResolver> resolvers = new HashMap<>();
-
-        // attachment: 附件文件
-        resolvers.put("attachment", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://attachment/filename -> /data/data/com.tencent.mm/MicroMsg/{userId}/attachment/filename
-                return basePath + "/attachment/" + fileName;
-            }
-        });
-
-        // openapi/thumb: API缩略图
-        resolvers.put("openapi", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://openapi/thumb/a3/7f/msgth_xxx -> /data/data/com.tencent.mm/MicroMsg/{userId}/openapi/thumb/a3/7f/msgth_xxx
-                String subPath = virtualPath.substring("wcf://openapi/".length());
-                return basePath + "/openapi/" + subPath;
-            }
-        });
-
-        // video: 视频文件
-        resolvers.put("video", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://video/xxx.mp4 -> /data/data/com.tencent.mm/MicroMsg/{userId}/video/xxx.mp4
-                // wcf://video/xxx.jpg -> /data/data/com.tencent.mm/MicroMsg/{userId}/video/xxx.jpg (缩略图)
-                return basePath + "/video/" + fileName;
-            }
-        });
-
-        // image2: 图片文件 (新版本微信)
-        resolvers.put("image2", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://image2/88/2a/th_xxx -> /data/data/com.tencent.mm/MicroMsg/{userId}/image2/88/2a/th_xxx
-                String subPath = virtualPath.substring("wcf://image2/".length());
-                return basePath + "/image2/" + subPath;
-            }
-        });
-
-        // image: 图片文件 (旧版本微信)
-        resolvers.put("image", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://image/xx/xx/xxx -> /data/data/com.tencent.mm/MicroMsg/{userId}/image/xx/xx/xxx
-                String subPath = virtualPath.substring("wcf://image/".length());
-                return basePath + "/image/" + subPath;
-            }
-        });
-
-        // voice: 语音文件
-        resolvers.put("voice", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                // wcf://voice/xxx.amr -> /data/data/com.tencent.mm/MicroMsg/{userId}/voice2/xx/xx/msg_xxx.amr
-                return resolveVoicePath(fileName);
-            }
-        });
-
-        // voice2: 语音文件 (新版本)
-        resolvers.put("voice2", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                String subPath = virtualPath.substring("wcf://voice2/".length());
-                return basePath + "/voice2/" + subPath;
-            }
-        });
-
-        // emoji: 表情文件
-        resolvers.put("emoji", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                String subPath = virtualPath.substring("wcf://emoji/".length());
-                return basePath + "/emoji/" + subPath;
-            }
-        });
-
-        // sfs: 文件系统相关
-        resolvers.put("sfs", new PathResolver() {
-            @Override
-            public String resolve(String virtualPath, String fileName) {
-                String subPath = virtualPath.substring("wcf://sfs/".length());
-                return basePath + "/sfs/" + subPath;
-            }
-        });
-
-        return resolvers;
     }
 
     /**
@@ -127,39 +40,43 @@ public class WeChatFilePathResolver {
      * @return 实际文件系统路径，如果无法解析则返回null
      */
     public String resolvePath(String wcfPath) {
-        if (wcfPath == null || !wcfPath.startsWith("wcf://")) {
+        if (wcfPath == null || !wcfPath.startsWith(WCF_SCHEME)) {
             return null;
         }
 
-        try {
-            // 解析协议类型
-            Pattern pattern = Pattern.compile("wcf://([^/]+)/(.*)");
-            Matcher matcher = pattern.matcher(wcfPath);
-
-            if (!matcher.matches()) {
-                Log.w(TAG, "Invalid wcf path format: " + wcfPath);
-                return null;
-            }
-
-            String protocol = matcher.group(1);
-            String fileName = matcher.group(2);
-
-            // 查找对应的解析器
-            PathResolver resolver = pathResolvers.get(protocol);
-            if (resolver == null) {
-                Log.w(TAG, "Unknown wcf protocol: " + protocol);
-                return null;
-            }
-
-            String realPath = resolver.resolve(wcfPath, fileName);
-            Log.d(TAG, "Resolved: " + wcfPath + " -> " + realPath);
-
-            return realPath;
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error resolving wcf path: " + wcfPath, e);
+        // 按前缀分派：wcf://<protocol>/<subPath>
+        int slash = wcfPath.indexOf('/', WCF_SCHEME.length());
+        if (slash < 0) {
+            Log.w(TAG, "Invalid wcf path format: " + wcfPath);
             return null;
         }
+        String protocol = wcfPath.substring(WCF_SCHEME.length(), slash);
+        String subPath = wcfPath.substring(slash + 1);
+
+        switch (protocol) {
+            case "voice":
+                // wcf://voice/xxx.amr -> {base}/voice2/xx/xx/msg_xxx.amr
+                return resolveVoicePath(subPath);
+            case "attachment":
+                // wcf://attachment/filename -> {base}/attachment/filename
+            case "openapi":
+                // wcf://openapi/thumb/a3/7f/msgth_xxx -> {base}/openapi/thumb/a3/7f/msgth_xxx
+            case "video":
+                // wcf://video/xxx.mp4 -> {base}/video/xxx.mp4，.jpg 为缩略图
+            case "image2":
+                // wcf://image2/88/2a/th_xxx -> {base}/image2/88/2a/th_xxx (新版本微信)
+            case "image":
+                // wcf://image/xx/xx/xxx -> {base}/image/xx/xx/xxx (旧版本微信)
+            case "voice2":
+            case "emoji":
+            case "sfs":
+                return basePath + "/" + protocol + "/" + subPath;
+            default:
+                if (unknownProtocols.add(protocol)) {
+                    Log.w(TAG, "Unknown wcf protocol: " + protocol);
+                }
+                return null;
+        }
     }
 
     /**
@@ -179,32 +96,23 @@ public class WeChatFilePathResolver {
     }
 
     /**
-     * 检查文件是否存在
+     * 检查文件是否存在且是普通文件（只查目录快照）
      */
     public boolean fileExists(String wcfPath) {
         String realPath = resolvePath(wcfPath);
-        if (realPath == null) {
-            return false;
-        }
-
-        File file = new File(realPath);
-        return file.exists() && file.isFile();
+        return realPath != null && isFileInSnapshot(realPath);
     }
 
     /**
-     * 获取文件信息
+     * 获取文件信息，只对快照中存在的文件做 stat
      */
     public FileInfo getFileInfo(String wcfPath) {
         String realPath = resolvePath(wcfPath);
-        if (realPath == null) {
+        if (realPath == null || !existsInSnapshot(realPath)) {
             return null;
         }
 
         File file = new File(realPath);
-        if (!file.exists()) {
-            return null;
-        }
-
         FileInfo info = new FileInfo();
         info.wcfPath = wcfPath;
         info.realPath = realPath;
@@ -220,6 +128,13 @@ public class WeChatFilePathResolver {
      * 批量解析路径
      */
     public Map<String, String> resolvePaths(String[] wcfPaths) {
+        return resolvePaths(Arrays.asList(wcfPaths));
+    }
+
+    /**
+     * 批量解析路径
+     */
+    public Map<String, String> resolvePaths(Collection<String> wcfPaths) {
         Map<String, String> results = new HashMap<>();
 
         for (String wcfPath : wcfPaths) {
@@ -232,6 +147,62 @@ public class WeChatFilePathResolver {
         return results;
     }
 
+    /**
+     * 批量解析并过滤出实际存在的文件，同一目录下的文件共用一次目录列举
+     */
+    public Map<String, String> resolveExistingPaths(Collection<String> wcfPaths) {
+        Map<String, String> results = resolvePaths(wcfPaths);
+        results.values().removeIf(realPath -> !isFileInSnapshot(realPath));
+        return results;
+    }
+
+    /**
+     * 丢弃目录快照，之后的检查重新列举目录
+     */
+    public void refreshSnapshot() {
+        dirSnapshot.clear();
+    }
+
+    private boolean existsInSnapshot(String realPath) {
+        return lookupSnapshot(realPath) != null;
+    }
+
+    /**
+     * 快照里同时记录了每个名字是否为普通文件，命中后无需再 stat
+     */
+    private boolean isFileInSnapshot(String realPath) {
+        return Boolean.TRUE.equals(lookupSnapshot(realPath));
+    }
+
+    /**
+     * @return 路径是否为普通文件；不存在时返回 null
+     */
+    private Boolean lookupSnapshot(String realPath) {
+        int slash = realPath.lastIndexOf('/');
+        if (slash < 0) {
+            File file = new File(realPath);
+            return file.exists() ? file.isFile() : null;
+        }
+        String dir = realPath.substring(0, slash);
+        Map<String, Boolean> entries = dirSnapshot.computeIfAbsent(dir, WeChatFilePathResolver::listEntries);
+        return entries.get(realPath.substring(slash + 1));
+    }
+
+    /**
+     * 列举目录，每个条目只在这里 stat 一次，记下是否为普通文件
+     */
+    private static Map<String, Boolean> listEntries(String dir) {
+        File[] files = new File(dir).listFiles();
+        if (files == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Boolean> entries = new HashMap<>(files.length * 2);
+        for (File file : files) {
+            entries.put(file.getName(), file.isFile());
+        }
+        return entries;
+    }
+
     /**
      * 获取可能的备用路径
      * 有些文件可能存在多个位置
@@ -258,11 +229,6 @@ public class WeChatFilePathResolver {
         return new String[]{mainPath};
     }
 
-    // 内部接口
-    private interface PathResolver {
-        String resolve(String virtualPath, String fileName);
-    }
-
     // 文件信息类
     public static class FileInfo {
         public String wcfPath;
@@ -1,22 +1,53 @@
 package com.wechat.dumpdb;
 
-import com.tencent.mm.plugin.gif.MMWXGFJNI;
+import android.util.Log;
+
+import com.wechat.dumpdb.common.TextUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
 public class WxgfAndroidDecoder {
     private static final String TAG = "WxgfAndroidDecoder";
-    private static final byte[] WXGF_HEADER = "wxgf".getBytes();
     private static final byte[] FAILURE_MESSAGE = "FAILED".getBytes();
+    // Files at least this large are decoded file to file, keeping them off the Java heap
+    private static final long FILE_DECODE_THRESHOLD = 512 * 1024;
+    // Cache keys of GIF-encoded animations, kept apart from still decodes of the same content
+    private static final String ANIMATED_KEY_PREFIX = "anim_";
 
     private CountDownLatch connectionLatch;
+    private WxgfDecodeCache cache;
+    private final WxgfDecodePool pool;
+    // Content md5 -> whether the picture is animated, once known
+    private final Map<String, Boolean> animated = new ConcurrentHashMap<>();
+    // Prefetches that have not finished yet, by file name; they never complete exceptionally
+    private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    public interface DecodedFileHandler<T> {
+        T handle(File decoded) throws IOException;
+    }
 
     public WxgfAndroidDecoder() {
+        this(null);
+    }
+
+    public WxgfAndroidDecoder(WxgfDecodeCache cache) {
+        this(cache, new WxgfDecodePool(NativeWxgfDecoder::new));
+    }
+
+    public WxgfAndroidDecoder(WxgfDecodeCache cache, WxgfDecodePool pool) {
+        this.cache = cache;
+        this.pool = pool;
     }
 
     public byte[] decode(byte[] data) throws Exception {
@@ -25,64 +56,243 @@ public class WxgfAndroidDecoder {
             throw new IllegalArgumentException("Data too short");
         }
 
-        for (int i = 0; i < 4; i++) {
-            if (data[i] != WXGF_HEADER[i]) {
-                byte[] header = new byte[Math.min(20, data.length)];
-                System.arraycopy(data, 0, header, 0, header.length);
-                throw new IllegalArgumentException("Invalid WXGF header: " + bytesToHex(header));
-            }
+        if (!isWxgfBuffer(data)) {
+            byte[] header = new byte[Math.min(20, data.length)];
+            System.arraycopy(data, 0, header, 0, header.length);
+            throw new IllegalArgumentException("Invalid WXGF header: " + TextUtil.toHex(header));
         }
-        return MMWXGFJNI.nativeWxam2PicBuf(data);
+        return pool.decode(data);
     }
 
+    /**
+     * Decode {@code data} (read from {@code fname} if null), reusing the result of an
+     * earlier decode of the same content when there is a cache. Large files are better
+     * decoded with {@link #withDecodedFile}.
+     */
     public byte[] decodeWithCache(String fname, byte[] data) throws Exception {
+        awaitPrefetch(fname);
         // Read data from file if not provided
         if (data == null) {
             data = readFile(fname);
         }
+        if (cache == null) {
+            return decode(data);
+        }
 
-        // Generate output filename
-        String outFname = getFileWithoutExtension(fname) + ".dec";
-
-        // Check if cached file exists
-        File outFile = new File(outFname);
-        if (outFile.exists()) {
-            return readFile(outFname);
+        String key = TextUtil.md5(data);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return cached;
         }
 
         byte[] result = decode(data);
 
         if (result != null) {
-            writeFile(outFname, result);
+            cache.put(key, result);
         }
 
         return result;
     }
 
-    public static boolean isWxgfFile(String fname) throws IOException {
-        try (FileInputStream fis = new FileInputStream(fname)) {
-            byte[] header = new byte[4];
-            int bytesRead = fis.read(header);
-            if (bytesRead < 4) {
-                return false;
+    /**
+     * Decode a WXGF sticker, keeping its animation as a GIF. Stills are decoded as by
+     * {@link #decodeWithCache}. Whether a picture is animated is worked out once per content
+     * md5, so stills do not pay for an animated decode attempt on every call.
+     */
+    public byte[] decodeAnimatedWithCache(String fname, byte[] data) throws Exception {
+        if (data == null) {
+            data = readFile(fname);
+        }
+        String md5 = TextUtil.md5(data);
+        Boolean known = animated.get(md5);
+        if (known == null && cache != null) {
+            // Whichever entry a previous run stored tells what the picture is
+            if (cache.contains(ANIMATED_KEY_PREFIX + md5)) {
+                known = true;
+            } else if (cache.contains(md5)) {
+                known = false;
+            }
+        }
+        if (Boolean.FALSE.equals(known)) {
+            return decodeWithCache(fname, data);
+        }
+
+        String key = ANIMATED_KEY_PREFIX + md5;
+        if (cache != null) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                animated.put(md5, true);
+                return cached;
+            }
+        }
+
+        byte[] gif;
+        try {
+            gif = pool.submitAnimated(data).get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Animated decode of " + fname + " failed", e.getCause());
+            return decodeWithCache(fname, data);
+        }
+        animated.put(md5, gif != null);
+        if (gif == null) {
+            return decodeWithCache(fname, data);
+        }
+        if (cache != null) {
+            cache.put(key, gif);
+        }
+        return gif;
+    }
+
+    /**
+     * Whether {@code fname} is large enough to be decoded with {@link #withDecodedFile}.
+     */
+    public boolean isLargeFile(String fname) {
+        return new File(fname).length() >= FILE_DECODE_THRESHOLD;
+    }
+
+    /**
+     * Decode WXGF file {@code fname} with the native file-to-file decoder and pass the
+     * decoded file to {@code handler}, so neither the input nor the decoded picture passes
+     * through the Java heap. The file lives in the cache if there is one; otherwise it is
+     * a temporary file that is deleted once the handler returns.
+     *
+     * @return the handler's result, or null if {@code fname} cannot be decoded
+     */
+    public <T> T withDecodedFile(String fname, DecodedFileHandler<T> handler) throws IOException {
+        if (cache == null) {
+            File out = File.createTempFile("wxgf_", ".dec");
+            try {
+                return decodeFile(fname, out) ? handler.handle(out) : null;
+            } finally {
+                out.delete();
+            }
+        }
+
+        awaitPrefetch(fname);
+        String key = md5OfFile(fname);
+        // A prefetch worker committing other pictures must not evict the file mid-handler
+        cache.pin(key);
+        try {
+            File decoded = cache.getFile(key);
+            if (decoded == null) {
+                decoded = decodeFileToCache(fname, key);
+            }
+            return decoded == null ? null : handler.handle(decoded);
+        } finally {
+            cache.unpin(key);
+        }
+    }
+
+    /**
+     * Start decoding WXGF file {@code fname} on the decode pool, so that a later
+     * {@link #decodeWithCache} finds it cached. Only useful when there is a cache.
+     * The file is read and hashed on the worker; this only blocks while the pool's
+     * queue is full.
+     */
+    public void prefetch(String fname) {
+        if (cache == null) {
+            return;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(fname, future) != null) {
+            return;
+        }
+        pool.submitWithDecoder(decoder -> {
+            prefetchFile(fname, decoder);
+            return null;
+        }).whenComplete((result, e) -> {
+            if (e != null) {
+                Log.w(TAG, "Prefetch of " + fname + " failed", e);
             }
-            return java.util.Arrays.equals(header, WXGF_HEADER);
+            inFlight.remove(fname, future);
+            future.complete(null);
+        });
+    }
+
+    public void flushCache() {
+        if (cache != null) {
+            cache.flush();
         }
     }
 
+    public void shutdown() {
+        pool.shutdown();
+        flushCache();
+    }
+
+    public static boolean isWxgfFile(String fname) {
+        return MediaSniffer.getInstance().sniffFile(fname) == MediaSniffer.Type.WXGF;
+    }
+
     public static boolean isWxgfBuffer(byte[] buf) {
-        if (buf.length < 4) {
-            return false;
+        return MediaSniffer.sniff(buf) == MediaSniffer.Type.WXGF;
+    }
+
+    private void prefetchFile(String fname, WxgfDecoder decoder) throws Exception {
+        if (!isWxgfFile(fname)) {
+            return;
         }
-        for (int i = 0; i < 4; i++) {
-            if (buf[i] != WXGF_HEADER[i]) {
-                return false;
+        if (isLargeFile(fname)) {
+            String key = md5OfFile(fname);
+            if (!cache.contains(key)) {
+                decodeFileToCache(fname, key);
             }
+            return;
+        }
+        byte[] data = readFile(fname);
+        String key = TextUtil.md5(data);
+        if (cache.contains(key)) {
+            return;
+        }
+        byte[] result = decoder.decode(data);
+        if (result != null) {
+            cache.put(key, result);
+        }
+    }
+
+    /**
+     * Wait for a prefetch of {@code fname} that is still running, so its result is not decoded twice.
+     */
+    private void awaitPrefetch(String fname) {
+        CompletableFuture<Void> pending = fname == null ? null : inFlight.get(fname);
+        if (pending != null) {
+            pending.join();
+        }
+    }
+
+    private File decodeFileToCache(String fname, String key) throws IOException {
+        File tmp = cache.newTempFile(key);
+        if (!decodeFile(fname, tmp)) {
+            tmp.delete();
+            return null;
+        }
+        return cache.commitFile(key, tmp);
+    }
+
+    private boolean decodeFile(String fname, File out) {
+        int ret = NativeWxgfDecoder.statelessPicFile(fname, out.getPath());
+        if (ret < 0 || out.length() == 0) {
+            Log.w(TAG, "nativeWxam2Pic failed for " + fname + ": " + ret);
+            return false;
         }
         return true;
     }
 
     // Helper methods
+    private static String md5OfFile(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                md.update(buffer, 0, bytesRead);
+            }
+            return TextUtil.toHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not available", e);
+        }
+    }
+
     private byte[] readFile(String filename) throws IOException {
         try (FileInputStream fis = new FileInputStream(filename);
              ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
@@ -95,26 +305,4 @@ public class WxgfAndroidDecoder {
             return baos.toByteArray();
         }
     }
-
-    private void writeFile(String filename, byte[] data) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(filename)) {
-            fos.write(data);
-        }
-    }
-
-    private String getFileWithoutExtension(String filename) {
-        int lastDotIndex = filename.lastIndexOf('.');
-        if (lastDotIndex == -1) {
-            return filename;
-        }
-        return filename.substring(0, lastDotIndex);
-    }
-
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
 }
@@ -0,0 +1,121 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Disk cache of decoded WXGF images, stored under app storage rather than next to the
+ * WeChat source files. Entries are keyed by the md5 of the WXGF content, so a picture is
+ * decoded once and reused by every later export. Least recently used entries are evicted
+ * once the cache grows beyond its size limit.
+ */
+public class WxgfDecodeCache {
+    private static final String TAG = "WxgfDecodeCache";
+    private static final String SUFFIX = ".dec";
+    private static final int FLUSH_INTERVAL = 50;
+
+    private final DiskLruCache cache;
+
+    public WxgfDecodeCache(File cacheDir, long maxBytes) {
+        this.cache = new DiskLruCache(cacheDir, SUFFIX, maxBytes, FLUSH_INTERVAL);
+    }
+
+    /**
+     * Whether {@code key} is cached, without counting as a hit or miss.
+     */
+    public boolean contains(String key) {
+        return cache.contains(key);
+    }
+
+    /**
+     * @return the decoded image cached for {@code key}, or null on a miss
+     */
+    public byte[] get(String key) {
+        File file = getFile(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cached wxgf " + file, e);
+            cache.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * @return the cached file of {@code key}, or null on a miss
+     */
+    public File getFile(String key) {
+        DiskLruCache.Entry entry = cache.get(key);
+        return entry == null ? null : entry.file;
+    }
+
+    /**
+     * Protect the entry of {@code key} from eviction until {@link #unpin}, including one
+     * that is committed in the meantime.
+     */
+    public void pin(String key) {
+        cache.pin(key);
+    }
+
+    public void unpin(String key) {
+        cache.unpin(key);
+    }
+
+    public void put(String key, byte[] data) {
+        File tmp = null;
+        try {
+            tmp = newTempFile(key);
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(data);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write wxgf cache entry " + key, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+        commitFile(key, tmp);
+    }
+
+    /**
+     * A fresh file inside the cache dir to write the entry for {@code key} to before
+     * handing it to {@link #commitFile}.
+     */
+    public File newTempFile(String key) throws IOException {
+        return cache.newTempFile(key);
+    }
+
+    /**
+     * Move a fully written {@code tmp} file into place as the entry for {@code key}.
+     *
+     * @return the cached file, or null if it could not be stored
+     */
+    public File commitFile(String key, File tmp) {
+        File dst = cache.commit(key, tmp, null);
+        if (dst == null) {
+            Log.w(TAG, "Failed to store wxgf cache entry " + key);
+            tmp.delete();
+        }
+        return dst;
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public void flush() {
+        cache.flush();
+    }
+}
@@ -0,0 +1,150 @@
+package com.wechat.dumpdb;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Decodes WXGF pictures on a fixed set of worker threads, one per core by default.
+ * Each worker creates its own {@link WxgfDecoder} on first use and closes it when the
+ * pool shuts down, so native decoder handles are never shared between threads.
+ * At most a few tasks per worker are queued; submitting more blocks the caller until
+ * one finishes, so a large chat cannot pile up its pictures in the queue.
+ */
+public class WxgfDecodePool {
+    private static final String TAG = "WxgfDecodePool";
+    private static final int QUEUED_PER_WORKER = 4;
+
+    private final Supplier<WxgfDecoder> decoderFactory;
+    private final ThreadLocal<WxgfDecoder> decoders = new ThreadLocal<>();
+    private final ExecutorService executor;
+    // Tasks queued or running
+    private final Semaphore slots;
+
+    public interface DecodeTask<T> {
+        T run(WxgfDecoder decoder) throws Exception;
+    }
+
+    public WxgfDecodePool(Supplier<WxgfDecoder> decoderFactory) {
+        this(decoderFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public WxgfDecodePool(Supplier<WxgfDecoder> decoderFactory, int workers) {
+        this.decoderFactory = decoderFactory;
+        workers = Math.max(1, workers);
+        this.executor = Executors.newFixedThreadPool(workers, new WorkerFactory());
+        this.slots = new Semaphore(workers * (QUEUED_PER_WORKER + 1));
+    }
+
+    public CompletableFuture<byte[]> submit(byte[] data) {
+        return submitWithDecoder(decoder -> decoder.decode(data));
+    }
+
+    /**
+     * Decode an animated picture to GIF on a worker; completes with null for stills.
+     */
+    public CompletableFuture<byte[]> submitAnimated(byte[] data) {
+        return submitWithDecoder(decoder -> decoder.decodeAnimated(data));
+    }
+
+    /**
+     * Run other decode work, such as file-to-file decoding, on the same bounded workers.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submitWithDecoder(decoder -> task.call());
+    }
+
+    /**
+     * Run {@code task} on a worker with that worker's decoder, e.g. to read and decode a file there.
+     * Blocks while the queue is full.
+     */
+    public <T> CompletableFuture<T> submitWithDecoder(DecodeTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.run(getDecoder()));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected after shutdown
+            slots.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Decode on a worker and wait for the result.
+     */
+    public byte[] decode(byte[] data) throws Exception {
+        try {
+            return submit(data).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private WxgfDecoder getDecoder() {
+        WxgfDecoder decoder = decoders.get();
+        if (decoder == null) {
+            decoder = decoderFactory.get();
+            decoders.set(decoder);
+        }
+        return decoder;
+    }
+
+    private void closeDecoder() {
+        WxgfDecoder decoder = decoders.get();
+        if (decoder != null) {
+            try {
+                decoder.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Error closing wxgf decoder", e);
+            }
+            decoders.remove();
+        }
+    }
+
+    private class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            // The worker loop returns once the pool is shut down; release the decoder on its own thread
+            Thread thread = new Thread(() -> {
+                try {
+                    r.run();
+                } finally {
+                    closeDecoder();
+                }
+            }, "wxgf-decode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.wechat.dumpdb;
+
+/**
+ * Decodes WXGF pictures. An instance may hold native state and is used by one thread
+ * at a time; {@link WxgfDecodePool} gives each of its workers its own instance.
+ */
+public interface WxgfDecoder {
+    /**
+     * @return the decoded picture as JPEG/PNG bytes, or null if it cannot be decoded
+     */
+    byte[] decode(byte[] data) throws Exception;
+
+    /**
+     * @return the animation encoded as GIF, or null if {@code data} is a still picture
+     */
+    default byte[] decodeAnimated(byte[] data) throws Exception {
+        return null;
+    }
+
+    /**
+     * Release any native resources. The instance must not be used afterwards.
+     */
+    void close();
+}
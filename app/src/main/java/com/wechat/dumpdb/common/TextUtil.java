@@ -9,22 +9,30 @@ import java.io.IOException;
 import java.security.MessageDigest;
 
 public class TextUtil {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     public static String md5(byte[] data) {
         try {
             MessageDigest md = MessageDigest.getInstance("MD5");
             md.update(data);
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b & 0xff));
-            }
-            return sb.toString();
+            return toHex(md.digest());
         } catch (Exception e) {
             throw new RuntimeException("MD5 error", e);
         }
     }
 
+    /**
+     * Lower-case hex of {@code bytes}, two digits per byte.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
     public static String getFileB64(String fname) {
         try {
             byte[] data = readAllBytes(fname);
@@ -0,0 +1,90 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AudioTranscodePoolTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private AudioTranscodePool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void transcodesIntoRequestedFile() throws Exception {
+        FakeAudioTranscoder transcoder = new FakeAudioTranscoder(new byte[]{1, 2, 3}, 1500);
+        pool = new AudioTranscodePool(transcoder, 2);
+        File out = tmp.newFile("voice.mp3");
+
+        AudioResult result = pool.submit("msg_1.amr", out).get();
+
+        assertEquals(out.getAbsolutePath(), result.mp3Url);
+        assertEquals(Long.valueOf(1500), result.duration);
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void runsSubmissionsConcurrently() throws Exception {
+        // Each job waits for all four to have started, which only happens if they run in parallel
+        CountDownLatch started = new CountDownLatch(4);
+        AtomicInteger overlapped = new AtomicInteger();
+        pool = new AudioTranscodePool((input, out) -> {
+            started.countDown();
+            if (started.await(5, TimeUnit.SECONDS)) {
+                overlapped.incrementAndGet();
+            }
+            return new AudioResult(out.getAbsolutePath(), 0L);
+        }, 4);
+
+        List<CompletableFuture<AudioResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(pool.submit("msg_" + i + ".amr", tmp.newFile()));
+        }
+        for (CompletableFuture<AudioResult> future : futures) {
+            future.get();
+        }
+
+        assertEquals(4, overlapped.get());
+    }
+
+    @Test
+    public void failuresYieldEmptyResult() {
+        pool = new AudioTranscodePool((input, out) -> {
+            throw new IllegalStateException("broken codec");
+        }, 1);
+
+        AudioResult result = pool.transcode("msg_1.amr", null);
+
+        assertEquals("", result.mp3Url);
+        assertEquals(Long.valueOf(0), result.duration);
+    }
+
+    @Test
+    public void emptyInputIsNotTranscoded() {
+        FakeAudioTranscoder transcoder = new FakeAudioTranscoder(new byte[]{0}, 0);
+        pool = new AudioTranscodePool(transcoder, 1);
+
+        assertEquals("", pool.transcode("", null).mp3Url);
+        assertEquals(0, transcoder.getCalls());
+    }
+}
@@ -0,0 +1,109 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class CdnUrlRacerTest {
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+    private MockWebServer server;
+    private CdnUrlRacer racer;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                switch (request.getPath()) {
+                    case "/slow":
+                        // Held until the test releases it, i.e. after the race is decided
+                        awaitQuietly(slowReleased);
+                        return new MockResponse().setResponseCode(206).setBody("x");
+                    case "/html":
+                        return new MockResponse().setHeader("Content-Type", "text/html").setBody("<html/>");
+                    case "/ok":
+                        return new MockResponse().setResponseCode(206).setHeader("Content-Type", "video/mp4")
+                                .setBody("x");
+                    default:
+                        return new MockResponse().setResponseCode(404);
+                }
+            }
+        });
+        server.start();
+        racer = new CdnUrlRacer(new MediaFetcher(), 50, 5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        slowReleased.countDown();
+        racer.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void firstValidCandidateWins() {
+        int winner = racer.race(Arrays.asList(url("/slow"), url("/missing"), url("/html"), url("/ok")));
+
+        // Decided while the slow candidate is still held
+        assertEquals(3, winner);
+        assertEquals(1, slowReleased.getCount());
+    }
+
+    @Test(timeout = 30000)
+    public void noValidCandidateLoses() {
+        CdnUrlRacer patient = new CdnUrlRacer(new MediaFetcher(), 50, Long.MAX_VALUE);
+        try {
+            // Without a timeout to fall back on, only the failed candidates can end the race
+            assertEquals(-1, patient.race(Arrays.asList(url("/missing"), url("/html"))));
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            patient.shutdown();
+        }
+    }
+
+    @Test
+    public void preferencesAreKeptPerMediaType() {
+        WeChatCDNVideoDecoder decoder = new WeChatCDNVideoDecoder(new MediaFetcher());
+        decoder.recordWinner(WeChatCDNVideoDecoder.MEDIA_VIDEO, 5);
+        decoder.recordWinner(WeChatCDNVideoDecoder.MEDIA_THUMB, 12);
+
+        // The winner, then the rest of its host
+        assertEquals(Arrays.asList(5, 4, 6, 7),
+                decoder.candidateOrder(WeChatCDNVideoDecoder.MEDIA_VIDEO).subList(0, 4));
+        assertEquals(12, (int) decoder.candidateOrder(WeChatCDNVideoDecoder.MEDIA_THUMB).get(0));
+    }
+
+    @Test
+    public void earlierWinningTemplateLeadsItsHost() {
+        WeChatCDNVideoDecoder decoder = new WeChatCDNVideoDecoder(new MediaFetcher());
+        // Template 1 won on the third host, then the first host took over
+        decoder.recordWinner(WeChatCDNVideoDecoder.MEDIA_VIDEO, 9);
+        decoder.recordWinner(WeChatCDNVideoDecoder.MEDIA_VIDEO, 0);
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 9, 8, 10, 11, 12, 13, 14, 15),
+                decoder.candidateOrder(WeChatCDNVideoDecoder.MEDIA_VIDEO));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String url(String path) {
+        return server.url(path).toString();
+    }
+}
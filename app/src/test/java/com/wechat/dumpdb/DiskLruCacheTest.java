@@ -0,0 +1,126 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class DiskLruCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, ".dec", 250, 100);
+        cache.commit("a", write(dir, 100), null);
+        cache.commit("b", write(dir, 100), null);
+        assertNotNull(cache.get("a"));
+
+        cache.commit("c", write(dir, 100), null);
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertFalse(new File(dir, "b.dec").exists());
+        assertEquals(200, cache.getTotalBytes());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void pinnedEntriesAreNotEvicted() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, ".dec", 250, 100);
+        cache.commit("a", write(dir, 100), null);
+        cache.commit("b", write(dir, 100), null);
+        cache.pin("a");
+
+        cache.commit("c", write(dir, 100), null);
+
+        assertTrue(new File(dir, "a.dec").exists());
+        assertFalse(cache.contains("b"));
+
+        cache.unpin("a");
+        cache.commit("d", write(dir, 100), null);
+
+        assertFalse(cache.contains("a"));
+    }
+
+    @Test
+    public void entriesLargerThanTheCacheAreRejected() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, ".dec", 250, 100);
+        cache.commit("a", write(dir, 100), null);
+        File big = write(dir, 300);
+
+        assertNull(cache.commit("b", big, null));
+
+        assertTrue(big.exists());
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(100, cache.getTotalBytes());
+    }
+
+    @Test
+    public void hitsAloneDoNotRewriteTheIndex() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, "", 1000, 100);
+        cache.commit("voice.mp3", write(dir, 10), "1500");
+        cache.flush();
+        File index = new File(dir, "index");
+        assertTrue(index.setLastModified(0));
+
+        assertNotNull(cache.get("voice.mp3"));
+        cache.flush();
+
+        assertEquals(0, index.lastModified());
+    }
+
+    @Test
+    public void indexSurvivesReopen() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, "", 1000, 100);
+        cache.commit("voice.mp3", write(dir, 10), "1500");
+        cache.commit("gone.mp3", write(dir, 20), "700");
+        cache.flush();
+        assertTrue(new File(dir, "gone.mp3").delete());
+
+        DiskLruCache reopened = new DiskLruCache(dir, "", 1000, 100);
+
+        assertEquals(1, reopened.size());
+        assertEquals(10, reopened.getTotalBytes());
+        assertEquals("1500", reopened.get("voice.mp3").meta);
+        assertNull(reopened.get("gone.mp3"));
+        assertEquals(1, reopened.getMisses());
+    }
+
+    @Test
+    public void tempFilesKeepTheExtensionAndAreDroppedOnReopen() throws Exception {
+        File dir = tmp.newFolder("cache");
+        DiskLruCache cache = new DiskLruCache(dir, "", 1000, 100);
+        File first = cache.newTempFile("voice.ogg");
+        File second = cache.newTempFile("voice.ogg");
+
+        assertTrue(first.getName().endsWith("_voice.ogg"));
+        assertFalse(first.equals(second));
+        assertFalse(first.equals(cache.fileFor("voice.ogg")));
+
+        new DiskLruCache(dir, "", 1000, 100);
+
+        assertFalse(first.exists());
+        assertFalse(second.exists());
+    }
+
+    private static File write(File dir, int size) throws Exception {
+        File file = File.createTempFile("entry", ".tmp", dir);
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+public class EmojiCacheStoreTest {
+    private static final String MD5_A = "0123456789abcdef0123456789abcdef";
+    private static final String MD5_B = "fedcba9876543210fedcba9876543210";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void lookupsIgnoreMd5Case() throws Exception {
+        EmojiCacheStore store = new EmojiCacheStore(new File(tmp.getRoot(), "emoji").getPath());
+        store.put(MD5_A.toUpperCase(), new byte[]{1, 2}, "png");
+
+        assertTrue(store.contains(MD5_A));
+        assertTrue(store.contains(MD5_A.toUpperCase()));
+        EmojiCacheStore.CachedEmoji cached = store.get("0123456789ABCDEF0123456789abcdef");
+        assertArrayEquals(new byte[]{1, 2}, cached.data);
+        assertEquals("png", cached.format);
+        assertNull(store.get(null));
+        store.close();
+    }
+
+    @Test
+    public void entriesSurviveReopen() throws Exception {
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        store.put(MD5_A, new byte[]{1}, "gif");
+        store.put(MD5_B, new byte[]{2, 3}, null);
+        store.close();
+
+        EmojiCacheStore reopened = new EmojiCacheStore(base);
+        assertEquals(2, reopened.size());
+        assertEquals("gif", reopened.get(MD5_A).format);
+        assertArrayEquals(new byte[]{2, 3}, reopened.get(MD5_B).data);
+        assertNull(reopened.get(MD5_B).format);
+        reopened.close();
+    }
+
+    @Test
+    public void tableGrowsPastHalfFull() throws Exception {
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        for (int i = 0; i < 1500; i++) {
+            store.put(md5Of(i), new byte[]{(byte) i}, "png");
+        }
+        store.close();
+
+        EmojiCacheStore reopened = new EmojiCacheStore(base);
+        assertEquals(1500, reopened.size());
+        for (int i = 0; i < 1500; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, reopened.get(md5Of(i)).data);
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void unreadableIndexStartsEmpty() throws Exception {
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        Files.write(new File(base + ".idx").toPath(), new byte[]{1, 2, 3});
+        Files.write(new File(base + ".dat").toPath(), new byte[]{4, 5});
+
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        assertEquals(0, store.size());
+        store.put(MD5_A, new byte[]{1}, "gif");
+        assertArrayEquals(new byte[]{1}, store.get(MD5_A).data);
+        store.close();
+        assertEquals(1, new File(base + ".dat").length());
+    }
+
+    @Test
+    public void compactionKeepsLatestEntries() throws Exception {
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        store.put(MD5_A, new byte[1000], "png");
+        store.put(MD5_A, new byte[]{9}, "jpeg");
+        store.put(MD5_B, new byte[]{7}, "webp");
+        store.compact();
+        store.close();
+
+        assertEquals(2, new File(base + ".dat").length());
+        assertFalse(new File(base + ".compact").exists());
+        EmojiCacheStore reopened = new EmojiCacheStore(base);
+        assertArrayEquals(new byte[]{9}, reopened.get(MD5_A).data);
+        assertEquals("jpeg", reopened.get(MD5_A).format);
+        assertArrayEquals(new byte[]{7}, reopened.get(MD5_B).data);
+        reopened.close();
+    }
+
+    @Test
+    public void openFinishesCommittedCompaction() throws Exception {
+        String compactedBase = new File(tmp.getRoot(), "compacted").getPath();
+        EmojiCacheStore compacted = new EmojiCacheStore(compactedBase);
+        compacted.put(MD5_B, new byte[]{5, 6}, "png");
+        compacted.close();
+
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        store.put(MD5_A, new byte[]{1}, "gif");
+        store.close();
+
+        // Interrupted after the marker and the data rename, before the index rename
+        Files.copy(new File(compactedBase + ".dat").toPath(), new File(base + ".dat").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(new File(compactedBase + ".idx").toPath(), new File(base + ".idx.tmp").toPath());
+        assertTrue(new File(base + ".compact").createNewFile());
+
+        EmojiCacheStore recovered = new EmojiCacheStore(base);
+        assertEquals(1, recovered.size());
+        assertArrayEquals(new byte[]{5, 6}, recovered.get(MD5_B).data);
+        assertFalse(new File(base + ".compact").exists());
+        assertFalse(new File(base + ".idx.tmp").exists());
+        recovered.close();
+    }
+
+    @Test
+    public void openDropsUncommittedCompaction() throws Exception {
+        String base = new File(tmp.getRoot(), "emoji").getPath();
+        EmojiCacheStore store = new EmojiCacheStore(base);
+        store.put(MD5_A, new byte[]{1}, "gif");
+        store.close();
+        Files.write(new File(base + ".dat.tmp").toPath(), new byte[]{42});
+
+        EmojiCacheStore reopened = new EmojiCacheStore(base);
+        assertArrayEquals(new byte[]{1}, reopened.get(MD5_A).data);
+        assertFalse(new File(base + ".dat.tmp").exists());
+        reopened.close();
+    }
+
+    private static String md5Of(int i) {
+        return String.format("%032x", i);
+    }
+}
@@ -0,0 +1,70 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class EmojiDirIndexTest {
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path emojiDir;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        emojiDir = tmp.newFolder("emoji").toPath();
+        indexFile = new File(tmp.getRoot(), "emoji.dirs");
+        Files.createFile(emojiDir.resolve(MD5));
+        Files.createFile(emojiDir.resolve(MD5 + "_cover"));
+        Files.createFile(emojiDir.resolve("short_id"));
+        Files.createFile(emojiDir.resolve("short_id_thumb"));
+        Files.createDirectory(emojiDir.resolve("group"));
+        Files.createFile(emojiDir.resolve("group").resolve(MD5));
+    }
+
+    @Test
+    public void findsMd5NamesExactlyAndByPrefix() {
+        EmojiDirIndex index = new EmojiDirIndex(emojiDir, indexFile);
+
+        assertEquals(Collections.singletonList(emojiDir.resolve(MD5)), index.find(emojiDir, MD5, false));
+        assertEquals(2, index.find(emojiDir, MD5, true).size());
+        assertEquals(Collections.singletonList(emojiDir.resolve("group").resolve(MD5)),
+                index.find(emojiDir.resolve("group"), MD5, true));
+    }
+
+    @Test
+    public void findsNamesThatAreNotMd5s() {
+        EmojiDirIndex index = new EmojiDirIndex(emojiDir, indexFile);
+
+        assertEquals(Collections.singletonList(emojiDir.resolve("short_id")),
+                index.find(emojiDir, "short_id", false));
+        List<Path> prefixed = index.find(emojiDir, "short_id", true);
+        prefixed.sort(null);
+        assertEquals(Arrays.asList(emojiDir.resolve("short_id"), emojiDir.resolve("short_id_thumb")), prefixed);
+        assertTrue(index.find(emojiDir, "missing", true).isEmpty());
+    }
+
+    @Test
+    public void savesIndexOnceScanFinishes() {
+        EmojiDirIndex index = new EmojiDirIndex(emojiDir, indexFile);
+        index.find(emojiDir, MD5, false);
+
+        assertTrue(indexFile.isFile());
+        EmojiDirIndex reloaded = new EmojiDirIndex(emojiDir, indexFile);
+        assertEquals(2, reloaded.find(emojiDir, MD5, true).size());
+    }
+}
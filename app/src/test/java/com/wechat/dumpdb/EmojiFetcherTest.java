@@ -0,0 +1,140 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+public class EmojiFetcherTest {
+    private static final byte[] CONTENT = "GIF89a emoji".getBytes();
+
+    private MockWebServer server;
+    private final List<String> cached = new ArrayList<>();
+    private EmojiFetcher fetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        fetcher = new EmojiFetcher(new MediaFetcher(), (md5, data) -> cached.add(md5));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void verifiedContentIsHandedOver() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(CONTENT)));
+        String md5 = md5Hex(CONTENT);
+
+        EmojiFetcher.Result result = fetcher.fetch(md5, url("/cdn"), null, null).get();
+
+        assertArrayEquals(CONTENT, result.data);
+        assertTrue(result.verified);
+        assertTrue(cached.contains(md5));
+    }
+
+    @Test
+    public void concurrentFetchesShareOneDownload() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(CONTENT))
+                .setBodyDelay(200, TimeUnit.MILLISECONDS));
+        String md5 = md5Hex(CONTENT);
+
+        CompletableFuture<EmojiFetcher.Result> first = fetcher.fetch(md5, url("/cdn"), null, null);
+        CompletableFuture<EmojiFetcher.Result> second = fetcher.fetch(md5, url("/cdn"), null, null);
+        assertTrue(fetcher.isFetching(md5));
+
+        assertSame(first, second);
+        assertArrayEquals(CONTENT, second.get().data);
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cached.size());
+        assertFalse(fetcher.isFetching(md5));
+    }
+
+    @Test
+    public void fallsBackToEncryptedUrl() throws Exception {
+        // AES/CBC without padding, with the key doubling as IV
+        byte[] plain = "0123456789abcdef0123456789abcdef".getBytes();
+        String aesKey = "00112233445566778899aabbccddeeff";
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) Integer.parseInt(aesKey.substring(2 * i, 2 * i + 2), 16);
+        }
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(key));
+        server.enqueue(new MockResponse().setBody("<html>moved</html>"));
+        server.enqueue(new MockResponse().setBody(new Buffer().write(cipher.doFinal(plain))));
+        String md5 = md5Hex(plain);
+
+        EmojiFetcher.Result result = fetcher.fetch(md5, url("/cdn"), url("/enc"), aesKey).get();
+
+        assertArrayEquals(plain, result.data);
+        assertTrue(result.verified);
+        assertEquals("/cdn", server.takeRequest().getPath());
+        assertEquals("/enc", server.takeRequest().getPath());
+        assertTrue(cached.contains(md5));
+    }
+
+    @Test
+    public void unverifiedContentIsKeptWhenEncryptedUrlFails() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(CONTENT)));
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        EmojiFetcher.Result result = fetcher.fetch(md5Hex(new byte[0]), url("/cdn"), url("/enc"), "00").get();
+
+        assertArrayEquals(CONTENT, result.data);
+        assertFalse(result.verified);
+        assertTrue(cached.isEmpty());
+    }
+
+    @Test
+    public void goneUrlsAreNotFound() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setResponseCode(410));
+
+        assertSame(EmojiFetcher.Result.NOT_FOUND,
+                fetcher.fetch(md5Hex(CONTENT), url("/cdn"), url("/enc"), "00").get());
+        assertSame(EmojiFetcher.Result.NOT_FOUND, fetcher.fetch(md5Hex(CONTENT), null, null, null).get());
+    }
+
+    @Test
+    public void otherFailuresAreNotNotFound() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setResponseCode(403));
+
+        assertNull(fetcher.fetch(md5Hex(CONTENT), url("/cdn"), url("/enc"), "00").get());
+        assertTrue(cached.isEmpty());
+    }
+
+    private String url(String path) {
+        return server.url(path).toString();
+    }
+
+    static String md5Hex(byte[] data) throws Exception {
+        byte[] hash = MessageDigest.getInstance("MD5").digest(data);
+        return String.format("%032x", new BigInteger(1, hash));
+    }
+}
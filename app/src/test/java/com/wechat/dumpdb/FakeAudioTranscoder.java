@@ -0,0 +1,36 @@
+package com.wechat.dumpdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pure-Java {@link AudioTranscoder} for exercising scheduling and caching on a plain JVM.
+ * Writes a fixed payload instead of decoding, and counts how often it was called.
+ */
+public class FakeAudioTranscoder implements AudioTranscoder {
+    private final byte[] payload;
+    private final long duration;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    public FakeAudioTranscoder(byte[] payload, long duration) {
+        this.payload = payload;
+        this.duration = duration;
+    }
+
+    @Override
+    public AudioResult transcode(String inputFile, File outFile) throws Exception {
+        calls.incrementAndGet();
+        if (outFile == null) {
+            outFile = File.createTempFile("fake_audio_", ".mp3");
+        }
+        try (FileOutputStream fos = new FileOutputStream(outFile)) {
+            fos.write(payload);
+        }
+        return new AudioResult(outFile.getAbsolutePath(), duration);
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+}
@@ -0,0 +1,80 @@
+package com.wechat.dumpdb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pure-Java {@link WxgfDecoder} for exercising {@link WxgfDecodePool} scheduling on a plain JVM.
+ * Returns the input reversed, optionally only once the test releases it, and records how
+ * often it was called and whether it was closed.
+ */
+public class FakeWxgfDecoder implements WxgfDecoder {
+    private final CountDownLatch release;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger animatedCalls = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    public FakeWxgfDecoder() {
+        this(new CountDownLatch(0));
+    }
+
+    /**
+     * @param release decodes block until this is counted down
+     */
+    public FakeWxgfDecoder(CountDownLatch release) {
+        this.release = release;
+    }
+
+    @Override
+    public byte[] decode(byte[] data) throws Exception {
+        if (isClosed()) {
+            throw new IllegalStateException("Decoder used after close");
+        }
+        calls.incrementAndGet();
+        started.countDown();
+        if (!release.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Decode never released");
+        }
+        byte[] result = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = data[data.length - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Treats every picture as a still.
+     */
+    @Override
+    public byte[] decodeAnimated(byte[] data) {
+        animatedCalls.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+
+    public int getAnimatedCalls() {
+        return animatedCalls.get();
+    }
+
+    public boolean isClosed() {
+        return closed.getCount() == 0;
+    }
+
+    public boolean awaitStarted(long timeout, TimeUnit unit) throws InterruptedException {
+        return started.await(timeout, unit);
+    }
+
+    public boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        return closed.await(timeout, unit);
+    }
+}
@@ -0,0 +1,144 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class MediaFetcherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MockWebServer server;
+    private MediaFetcher fetcher;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        fetcher = new MediaFetcher();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void asyncFetchesAreLimitedPerHost() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                active.decrementAndGet();
+                return new MockResponse().setBody("ok");
+            }
+        });
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(fetcher.fetchBytesAsync(server.url("/emoji/" + i).toString()));
+        }
+        for (CompletableFuture<byte[]> future : futures) {
+            assertArrayEquals("ok".getBytes(), future.get());
+        }
+
+        assertEquals(10, server.getRequestCount());
+        assertTrue("max concurrent requests " + maxActive.get(), maxActive.get() <= 4);
+    }
+
+    @Test
+    public void syncAndAsyncFetchesShareTheHostLimit() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                Thread.sleep(50);
+                active.decrementAndGet();
+                return new MockResponse().setBody("ok");
+            }
+        });
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(fetcher.fetchBytesAsync(server.url("/emoji/" + i).toString()));
+            String url = server.url("/avatar/" + i).toString();
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetcher.fetchBytes(url);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<byte[]> future : futures) {
+            assertArrayEquals("ok".getBytes(), future.get());
+        }
+
+        assertEquals(8, server.getRequestCount());
+        assertTrue("max concurrent requests " + maxActive.get(), maxActive.get() <= 4);
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("avatar"));
+
+        byte[] data = fetcher.fetchBytes(server.url("/avatar").toString());
+
+        assertArrayEquals("avatar".getBytes(), data);
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, fetcher.getMetrics().retries);
+    }
+
+    @Test
+    public void missingResourcesAreReportedAsNotFound() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        try {
+            fetcher.fetchBytes(server.url("/gone").toString());
+            fail("expected HttpStatusException");
+        } catch (MediaFetcher.HttpStatusException e) {
+            assertEquals(404, e.code);
+            assertTrue(MediaFetcher.isNotFound(e));
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void cachedResponsesSkipTheRateLimit() throws Exception {
+        fetcher.installCache(tmp.newFolder("http"), 1 << 20);
+        server.enqueue(new MockResponse().setHeader("Cache-Control", "max-age=3600").setBody("emoji"));
+        String url = server.url("/emoji").toString();
+
+        assertArrayEquals("emoji".getBytes(), fetcher.fetchBytes(url));
+        assertArrayEquals("emoji".getBytes(), fetcher.fetchBytes(url));
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, fetcher.getMetrics().requests);
+        assertEquals(1, fetcher.getMetrics().cacheHits);
+    }
+}
@@ -0,0 +1,44 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class MediaSnifferTest {
+    @Test
+    public void countsGifFrames() {
+        assertEquals(1, MediaSniffer.countGifFrames(gif(1), 2));
+        assertEquals(2, MediaSniffer.countGifFrames(gif(3), 2));
+        assertEquals(3, MediaSniffer.countGifFrames(gif(3), 10));
+    }
+
+    @Test
+    public void rejectsTruncatedGifs() {
+        byte[] gif = gif(2);
+        byte[] truncated = new byte[gif.length - 6];
+        System.arraycopy(gif, 0, truncated, 0, truncated.length);
+
+        assertEquals(-1, MediaSniffer.countGifFrames(truncated, 10));
+        assertEquals(-1, MediaSniffer.countGifFrames("not a gif".getBytes(), 10));
+    }
+
+    /**
+     * A 1x1 GIF with a two-color global table and {@code frames} images, each behind a
+     * graphic control extension.
+     */
+    private static byte[] gif(int frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("GIF89a".getBytes(), 0, 6);
+        out.write(new byte[]{1, 0, 1, 0, (byte) 0x80, 0, 0}, 0, 7);
+        out.write(new byte[6], 0, 6);
+        for (int i = 0; i < frames; i++) {
+            out.write(new byte[]{0x21, (byte) 0xF9, 4, 0, 10, 0, 0, 0}, 0, 8);
+            out.write(new byte[]{0x2C, 0, 0, 0, 0, 1, 0, 1, 0, 0}, 0, 10);
+            out.write(new byte[]{2, 2, 0x44, 0x01, 0}, 0, 5);
+        }
+        out.write(0x3B);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+package com.wechat.dumpdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * MockWebServer {@link Dispatcher} serving one file with HTTP range support, for exercising
+ * resumed and segmented downloads. Ranges can be turned off to mimic servers without them.
+ */
+public class RangeDispatcher extends Dispatcher {
+    private final byte[] content;
+    private final boolean ranges;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    public RangeDispatcher(byte[] content, boolean ranges) {
+        this.content = content;
+        this.ranges = ranges;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        String range = request.getHeader("Range");
+        if (range == null || !ranges) {
+            return new MockResponse().setBody(new Buffer().write(content));
+        }
+        rangeRequests.incrementAndGet();
+        // bytes=<from>-[<to>]
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        long from = Long.parseLong(bounds[0]);
+        long to = bounds[1].isEmpty() ? content.length - 1 : Math.min(Long.parseLong(bounds[1]), content.length - 1);
+        if (from >= content.length) {
+            return new MockResponse().setResponseCode(416)
+                    .setHeader("Content-Range", "bytes */" + content.length);
+        }
+        return new MockResponse().setResponseCode(206)
+                .setHeader("Content-Range", "bytes " + from + "-" + to + "/" + content.length)
+                .setBody(new Buffer().write(content, (int) from, (int) (to - from + 1)));
+    }
+
+    public int getRangeRequests() {
+        return rangeRequests.get();
+    }
+}
@@ -0,0 +1,93 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+public class SegmentedDownloaderTest {
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MockWebServer server;
+    private SegmentedDownloader downloader;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        downloader = new SegmentedDownloader(new MediaFetcher(), 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloader.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void mergesAndDecryptsSegments() throws Exception {
+        byte[] plain = randomBytes(100_003);
+        RangeDispatcher dispatcher = new RangeDispatcher(encrypt(plain), true);
+        server.setDispatcher(dispatcher);
+        File out = new File(tmp.getRoot(), "video.mp4");
+
+        assertTrue(downloader.download(server.url("/video").toString(), KEY, out, null));
+
+        assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+        assertFalse(new File(out.getPath() + ".part").exists());
+        // One probe plus four segments
+        assertEquals(5, dispatcher.getRangeRequests());
+    }
+
+    @Test
+    public void mergesPlainSegments() throws Exception {
+        byte[] plain = randomBytes(50_000);
+        server.setDispatcher(new RangeDispatcher(plain, true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+
+        assertTrue(downloader.download(server.url("/video").toString(), null, out, null));
+
+        assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void declinesServersWithoutRanges() throws Exception {
+        server.setDispatcher(new RangeDispatcher(randomBytes(1000), false));
+        File out = new File(tmp.getRoot(), "video.mp4");
+
+        assertFalse(downloader.download(server.url("/video").toString(), null, out, null));
+
+        assertFalse(out.exists());
+        assertFalse(new File(out.getPath() + ".part").exists());
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    static byte[] encrypt(byte[] plain) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"));
+        return cipher.doFinal(plain);
+    }
+}
@@ -0,0 +1,83 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class VoiceDurationTest {
+    @Test
+    public void countsSilkFramesWithAndWithoutLeadingByte() {
+        byte[] silk = silk(new int[]{10, 0, 250});
+        byte[] wechat = new byte[silk.length + 1];
+        wechat[0] = 0x02;
+        System.arraycopy(silk, 0, wechat, 1, silk.length);
+
+        assertEquals(60, VoiceDuration.parseDurationMs(silk));
+        assertEquals(60, VoiceDuration.parseDurationMs(wechat));
+    }
+
+    @Test
+    public void silkStopsAtEndMarker() {
+        byte[] silk = silk(new int[]{10, 10});
+        byte[] marked = Arrays.copyOf(silk, silk.length + 2 + 2 + 10);
+        marked[silk.length] = (byte) 0xFF;
+        marked[silk.length + 1] = (byte) 0xFF;
+
+        assertEquals(40, VoiceDuration.parseDurationMs(marked));
+    }
+
+    @Test
+    public void countsAmrFramesBySizeOfTheirType() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes(), 0, 6);
+        // 12.2 kbit/s, 4.75 kbit/s, SID and NO_DATA frames
+        amrFrame(out, 7, 31);
+        amrFrame(out, 0, 12);
+        amrFrame(out, 8, 5);
+        amrFrame(out, 15, 0);
+
+        assertEquals(80, VoiceDuration.parseDurationMs(out.toByteArray()));
+    }
+
+    @Test
+    public void truncatedFramesAreNotCounted() {
+        byte[] silk = silk(new int[]{10, 10});
+        assertEquals(20, VoiceDuration.parseDurationMs(Arrays.copyOf(silk, silk.length - 1)));
+        assertEquals(20, VoiceDuration.parseDurationMs(Arrays.copyOf(silk, silk.length - 11)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!AMR\n".getBytes(), 0, 6);
+        amrFrame(out, 7, 31);
+        amrFrame(out, 7, 31);
+        byte[] amr = out.toByteArray();
+        assertEquals(20, VoiceDuration.parseDurationMs(Arrays.copyOf(amr, amr.length - 1)));
+
+        assertEquals(0, VoiceDuration.parseDurationMs("#!SILK_V3".getBytes()));
+        assertEquals(-1, VoiceDuration.parseDurationMs("#!SI".getBytes()));
+    }
+
+    @Test
+    public void unknownStreamsHaveNoDuration() {
+        assertEquals(-1, VoiceDuration.parseDurationMs("#!AMR-WB\n".getBytes()));
+        assertEquals(-1, VoiceDuration.parseDurationMs(new byte[32]));
+    }
+
+    private static byte[] silk(int[] frameSizes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("#!SILK_V3".getBytes(), 0, 9);
+        for (int size : frameSizes) {
+            out.write(size & 0xFF);
+            out.write(size >> 8);
+            out.write(new byte[size], 0, size);
+        }
+        return out.toByteArray();
+    }
+
+    private static void amrFrame(ByteArrayOutputStream out, int frameType, int payloadSize) {
+        out.write(frameType << 3 | 0x04);
+        out.write(new byte[payloadSize], 0, payloadSize);
+    }
+}
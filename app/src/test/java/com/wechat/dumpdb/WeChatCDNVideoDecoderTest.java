@@ -0,0 +1,119 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+public class WeChatCDNVideoDecoderTest {
+    // Hex of SegmentedDownloaderTest's AES key
+    private static final String AES_KEY_HEX = "30313233343536373839616263646566";
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private MockWebServer server;
+    private WeChatCDNVideoDecoder decoder;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        decoder = new WeChatCDNVideoDecoder(new MediaFetcher());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        decoder.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void decryptsWhileStreamingToFile() throws Exception {
+        byte[] plain = SegmentedDownloaderTest.randomBytes(200_001);
+        server.setDispatcher(new RangeDispatcher(SegmentedDownloaderTest.encrypt(plain), true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+
+        assertTrue(decoder.downloadToFile(server.url("/video").toString(), AES_KEY_HEX, out, null));
+
+        assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+        assertEquals(null, server.takeRequest().getHeader("Range"));
+    }
+
+    @Test
+    public void resumesEncryptedDownloadFromLastWholeBlock() throws Exception {
+        byte[] plain = SegmentedDownloaderTest.randomBytes(5000);
+        server.setDispatcher(new RangeDispatcher(SegmentedDownloaderTest.encrypt(plain), true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+        // Interrupted mid-block: the partial block is fetched again
+        Files.write(new File(out.getPath() + ".part").toPath(), Arrays.copyOf(plain, 1000));
+
+        assertTrue(decoder.downloadToFile(server.url("/video").toString(), AES_KEY_HEX, out, null));
+
+        assertEquals("bytes=992-", server.takeRequest().getHeader("Range"));
+        assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void resumesPlainDownloadAtPartLength() throws Exception {
+        byte[] content = SegmentedDownloaderTest.randomBytes(5000);
+        server.setDispatcher(new RangeDispatcher(content, true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+        Files.write(new File(out.getPath() + ".part").toPath(), Arrays.copyOf(content, 700));
+
+        assertTrue(decoder.downloadToFile(server.url("/video").toString(), null, out, null));
+
+        assertEquals("bytes=700-", server.takeRequest().getHeader("Range"));
+        assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void restartsWhenServerIgnoresRange() throws Exception {
+        byte[] plain = SegmentedDownloaderTest.randomBytes(5000);
+        server.setDispatcher(new RangeDispatcher(SegmentedDownloaderTest.encrypt(plain), false));
+        File out = new File(tmp.getRoot(), "video.mp4");
+        Files.write(new File(out.getPath() + ".part").toPath(), new byte[1600]);
+
+        assertTrue(decoder.downloadToFile(server.url("/video").toString(), AES_KEY_HEX, out, null));
+
+        assertArrayEquals(plain, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void completePartFileIsKeptOnRangeNotSatisfiable() throws Exception {
+        byte[] content = SegmentedDownloaderTest.randomBytes(2000);
+        server.setDispatcher(new RangeDispatcher(content, true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+        // Downloaded in full, but not renamed yet
+        Files.write(new File(out.getPath() + ".part").toPath(), content);
+
+        assertTrue(decoder.downloadToFile(server.url("/video").toString(), null, out, null));
+
+        assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+        assertFalse(new File(out.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void oversizedPartFileIsDiscarded() throws Exception {
+        server.setDispatcher(new RangeDispatcher(SegmentedDownloaderTest.randomBytes(2000), true));
+        File out = new File(tmp.getRoot(), "video.mp4");
+        File part = new File(out.getPath() + ".part");
+        Files.write(part.toPath(), new byte[3000]);
+
+        assertFalse(decoder.downloadToFile(server.url("/video").toString(), null, out, null));
+
+        assertFalse(part.exists());
+        assertFalse(out.exists());
+    }
+}
@@ -0,0 +1,60 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class WeChatFilePathResolverTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void onlyRegularFilesExist() throws Exception {
+        File attachments = tmp.newFolder("attachment");
+        assertTrue(new File(attachments, "report.pdf").createNewFile());
+        assertTrue(new File(attachments, "folder").mkdir());
+        WeChatFilePathResolver resolver = new WeChatFilePathResolver(tmp.getRoot().getPath());
+
+        assertTrue(resolver.fileExists("wcf://attachment/report.pdf"));
+        assertFalse(resolver.fileExists("wcf://attachment/folder"));
+        assertFalse(resolver.fileExists("wcf://attachment/missing.pdf"));
+        assertFalse(resolver.fileExists("wcf://unknown/report.pdf"));
+
+        Map<String, String> existing = resolver.resolveExistingPaths(Arrays.asList(
+                "wcf://attachment/report.pdf", "wcf://attachment/folder", "wcf://attachment/missing.pdf"));
+        assertEquals(Collections.singleton("wcf://attachment/report.pdf"), existing.keySet());
+    }
+
+    @Test
+    public void directoriesStillHaveFileInfo() throws Exception {
+        assertTrue(new File(tmp.newFolder("attachment"), "folder").mkdir());
+        WeChatFilePathResolver resolver = new WeChatFilePathResolver(tmp.getRoot().getPath());
+
+        WeChatFilePathResolver.FileInfo info = resolver.getFileInfo("wcf://attachment/folder");
+
+        assertNotNull(info);
+        assertTrue(info.isDirectory);
+    }
+
+    @Test
+    public void refreshPicksUpNewFiles() throws Exception {
+        File attachments = tmp.newFolder("attachment");
+        WeChatFilePathResolver resolver = new WeChatFilePathResolver(tmp.getRoot().getPath());
+        assertFalse(resolver.fileExists("wcf://attachment/late.pdf"));
+
+        assertTrue(new File(attachments, "late.pdf").createNewFile());
+        assertFalse(resolver.fileExists("wcf://attachment/late.pdf"));
+        resolver.refreshSnapshot();
+        assertTrue(resolver.fileExists("wcf://attachment/late.pdf"));
+    }
+}
@@ -0,0 +1,122 @@
+package com.wechat.dumpdb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WxgfDecodePoolTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void eachWorkerUsesItsOwnDecoder() throws Exception {
+        List<FakeWxgfDecoder> decoders = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch created = new CountDownLatch(2);
+        WxgfDecodePool pool = new WxgfDecodePool(() -> {
+            FakeWxgfDecoder decoder = new FakeWxgfDecoder(release);
+            synchronized (decoders) {
+                decoders.add(decoder);
+            }
+            created.countDown();
+            return decoder;
+        }, 2);
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(pool.submit(new byte[]{1, 2, (byte) i}));
+        }
+        // The first decode holds one worker until both have picked up work
+        assertTrue(created.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        for (int i = 0; i < futures.size(); i++) {
+            assertArrayEquals(new byte[]{(byte) i, 2, 1}, futures.get(i).get());
+        }
+        assertEquals(2, decoders.size());
+        assertEquals(8, decoders.get(0).getCalls() + decoders.get(1).getCalls());
+
+        pool.shutdown();
+        assertTrue(decoders.get(0).awaitClosed(5, TimeUnit.SECONDS));
+        assertTrue(decoders.get(1).awaitClosed(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void submitBlocksOnceTheQueueIsFull() throws Exception {
+        WxgfDecodePool pool = new WxgfDecodePool(() -> new FakeWxgfDecoder(), 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger submitted = new AtomicInteger();
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 20; i++) {
+                pool.submit(() -> release.await(5, TimeUnit.SECONDS));
+                submitted.incrementAndGet();
+            }
+        });
+        producer.start();
+        // Wait for the producer to park on the full queue
+        while (producer.getState() != Thread.State.WAITING && producer.isAlive()) {
+            Thread.yield();
+        }
+
+        // One running plus a bounded queue behind it
+        assertTrue(producer.isAlive());
+        assertTrue(submitted.get() < 20);
+        release.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(20, submitted.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void prefetchedFilesAreDecodedOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeWxgfDecoder fake = new FakeWxgfDecoder(release);
+        WxgfDecodePool pool = new WxgfDecodePool(() -> fake, 1);
+        WxgfDecodeCache cache = new WxgfDecodeCache(tmp.newFolder("cache"), 1 << 20);
+        WxgfAndroidDecoder decoder = new WxgfAndroidDecoder(cache, pool);
+        File picture = tmp.newFile("picture");
+        Files.write(picture.toPath(), "wxgf-picture".getBytes());
+
+        decoder.prefetch(picture.getPath());
+        // The second prefetch arrives while the first is still decoding
+        assertTrue(fake.awaitStarted(5, TimeUnit.SECONDS));
+        decoder.prefetch(picture.getPath());
+        release.countDown();
+        byte[] decoded = decoder.decodeWithCache(picture.getPath(), null);
+
+        assertArrayEquals("erutcip-fgxw".getBytes(), decoded);
+        assertEquals(1, fake.getCalls());
+        decoder.shutdown();
+    }
+
+    @Test
+    public void stillStickersAreRecognizedOnce() throws Exception {
+        FakeWxgfDecoder fake = new FakeWxgfDecoder();
+        WxgfDecodePool pool = new WxgfDecodePool(() -> fake, 1);
+        WxgfAndroidDecoder decoder = new WxgfAndroidDecoder(
+                new WxgfDecodeCache(tmp.newFolder("cache"), 1 << 20), pool);
+        byte[] sticker = "wxgf-sticker".getBytes();
+
+        assertArrayEquals("rekcits-fgxw".getBytes(), decoder.decodeAnimatedWithCache("sticker", sticker));
+        assertArrayEquals("rekcits-fgxw".getBytes(), decoder.decodeAnimatedWithCache("sticker", sticker));
+
+        assertEquals(1, fake.getAnimatedCalls());
+        assertEquals(1, fake.getCalls());
+        decoder.shutdown();
+    }
+}